@@ -0,0 +1,78 @@
+package org.dcache.simplenfs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.dcache.nfs.vfs.Inode;
+import org.dcache.nfs.vfs.Stat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Per-request cost of the metadata hot paths. Run with {@code -prof gc} to get bytes allocated per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocalFileSystemBenchmark {
+
+    private static final int FILES = 1000;
+
+    private Path root;
+    private LocalFileSystem fs;
+    private Inode dir;
+    private Inode file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("jmh");
+        Path dirPath = Files.createDirectory(root.resolve("dir"));
+        for (int i = 0; i < FILES; i++) {
+            Files.write(dirPath.resolve("file-" + i), new byte[4096]);
+        }
+        fs = new LocalFileSystem(root, Collections.emptyList());
+        dir = fs.lookup(fs.getRootInode(), "dir");
+        file = fs.lookup(dir, "file-42");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Inode lookup() throws IOException {
+        return fs.lookup(dir, "file-42");
+    }
+
+    @Benchmark
+    public Stat getattr() throws IOException {
+        return fs.getattr(file);
+    }
+
+    @Benchmark
+    public Stat lookupAndGetattr() throws IOException {
+        return fs.getattr(fs.lookup(dir, "file-42"));
+    }
+}
@@ -24,6 +24,12 @@ public class App {
     private int rpcPort = 2049;
     @Option(name = "-with-portmap", usage = "start embedded portmap")
     private boolean withPortmap;
+    @Option(name = "-trace", usage = "record file system operations into file", metaVar = "<file>")
+    private Path traceFile;
+    @Option(name = "-fast-tier", usage = "directory on a fast device to keep hot files", metaVar = "<path>")
+    private Path fastTier;
+    @Option(name = "-fast-tier-size", usage = "max number of bytes to keep in the fast tier", metaVar = "<bytes>")
+    private long fastTierCapacity = 1024L * 1024 * 1024;
 
     public static void main(String[] args) throws Exception {
         new App().run(args);
@@ -54,7 +60,7 @@ public class App {
             new OncRpcEmbeddedPortmap();
         }
 
-        try (SimpleNfsServer ignored = new SimpleNfsServer(nfsVers, rpcPort, root, exportFile, null)) {
+        try (SimpleNfsServer ignored = new SimpleNfsServer(nfsVers, rpcPort, root, exportFile, null, traceFile, fastTier, fastTierCapacity)) {
             //noinspection ResultOfMethodCallIgnored
             System.in.read(); //any key to shutdown
         }
@@ -0,0 +1,430 @@
+package org.dcache.simplenfs;
+
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+
+import org.dcache.nfs.FsExport;
+import org.dcache.nfs.status.AccessException;
+import org.dcache.nfs.status.NoEntException;
+import org.dcache.nfs.status.StaleException;
+import org.dcache.nfs.status.XDevException;
+import org.dcache.nfs.v4.NfsIdMapping;
+import org.dcache.nfs.v4.xdr.nfsace4;
+import org.dcache.nfs.vfs.AclCheckable;
+import org.dcache.nfs.vfs.DirectoryEntry;
+import org.dcache.nfs.vfs.DirectoryStream;
+import org.dcache.nfs.vfs.FsStat;
+import org.dcache.nfs.vfs.Inode;
+import org.dcache.nfs.vfs.Stat;
+import org.dcache.nfs.vfs.Stat.Type;
+import org.dcache.nfs.vfs.VirtualFileSystem;
+
+import javax.security.auth.Subject;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link VirtualFileSystem} which serves every export by its own file system instance,
+ * each with its own root, inode space and caches.
+ *
+ * Each instance puts its index in front of its file ids, thus requests are routed by the
+ * first bytes of the file handle, and file handles and attributes are passed through as is.
+ * A lookup of a nested export's root directory crosses into the nested instance, ".." of an
+ * export's root crosses back. If "/" is not exported, an extra instance serves the directories
+ * leading to the exports.
+ */
+public class ExportRoutingFileSystem implements VirtualFileSystem {
+
+    /**
+     * Creates the file system of a single export.
+     */
+    @FunctionalInterface
+    public interface FileSystemFactory {
+
+        /**
+         * The returned file system must use file ids made of the four byte {@code index}
+         * followed by an eight byte inode number, like {@link LocalFileSystem#LocalFileSystem(Path, Set, int)}.
+         *
+         * @param index index of the instance
+         * @param root root directory of the export
+         * @param nestedExports root directories of exports below {@code root}, served by other instances
+         */
+        VirtualFileSystem create(int index, Path root, Set<Path> nestedExports) throws IOException;
+    }
+
+    /**
+     * Number of bytes used for the instance index in the file id.
+     */
+    private static final int INDEX_SIZE = Integer.BYTES;
+
+    private static class Instance {
+        final int index;
+        final Path root;
+        final VirtualFileSystem vfs;
+        final Inode rootInode;
+        final long rootIno;
+
+        /**
+         * Instance which contains the root directory of this one, or null for the top instance.
+         */
+        Instance parent;
+
+        /**
+         * Directory of the parent instance which corresponds to the root of this instance.
+         */
+        Inode mountPoint;
+
+        /**
+         * Inode numbers of directories which are roots of nested instances.
+         */
+        final NonBlockingHashMapLong<Instance> mounts = new NonBlockingHashMapLong<>();
+
+        /**
+         * Inode numbers of directories which contain mount points.
+         */
+        final NonBlockingHashMapLong<Boolean> mountParents = new NonBlockingHashMapLong<>();
+
+        Instance(int index, Path root, VirtualFileSystem vfs) throws IOException {
+            this.index = index;
+            this.root = root;
+            this.vfs = vfs;
+            this.rootInode = vfs.getRootInode();
+            this.rootIno = inodeNumberOf(rootInode);
+        }
+    }
+
+    private final Instance[] instances;
+
+    public ExportRoutingFileSystem(Path root, Iterable<FsExport> exportIterable) throws IOException {
+        this(root, exportIterable, (index, exportRoot, nestedExports) ->
+                new LocalFileSystem(exportRoot, nestedExports, index));
+    }
+
+    public ExportRoutingFileSystem(Path root, Iterable<FsExport> exportIterable, FileSystemFactory factory) throws IOException {
+        // the same path can be exported to different clients
+        Set<Path> exportRoots = new TreeSet<>();
+        for (FsExport export : exportIterable) {
+            String relativeExportPath = export.getPath().substring(1); // remove the opening '/'
+            Path exportRootPath = root.resolve(relativeExportPath).normalize();
+            if (!Files.exists(exportRootPath)) {
+                Files.createDirectories(exportRootPath);
+            }
+            exportRoots.add(exportRootPath);
+        }
+        // as sorted, the top-most instance comes first and parents before nested instances
+        exportRoots.add(root.normalize());
+
+        List<Instance> list = new ArrayList<>();
+        for (Path exportRoot : exportRoots) {
+            Set<Path> nestedExports = new HashSet<>();
+            for (Path other : exportRoots) {
+                if (!other.equals(exportRoot) && other.startsWith(exportRoot)) {
+                    nestedExports.add(other);
+                }
+            }
+            int index = list.size();
+            Instance instance = new Instance(index, exportRoot, factory.create(index, exportRoot, nestedExports));
+            for (int i = list.size() - 1; i >= 0; i--) {
+                Instance parent = list.get(i);
+                if (exportRoot.startsWith(parent.root)) {
+                    instance.parent = parent;
+                    instance.mountPoint = parent.rootInode;
+                    for (Path name : parent.root.relativize(exportRoot)) {
+                        instance.mountPoint = parent.vfs.lookup(instance.mountPoint, name.toString());
+                    }
+                    parent.mounts.put(inodeNumberOf(instance.mountPoint), instance);
+                    parent.mountParents.put(inodeNumberOf(parent.vfs.parentOf(instance.mountPoint)), Boolean.TRUE);
+                    break;
+                }
+            }
+            list.add(instance);
+        }
+        instances = list.toArray(new Instance[0]);
+    }
+
+    private Instance instanceOf(Inode inode) throws StaleException {
+        byte[] fileId = inode.getFileId();
+        if (fileId.length != INDEX_SIZE + Long.BYTES) {
+            throw new StaleException("bad file handle");
+        }
+        int index = ((fileId[0] & 0xFF) << 24) | ((fileId[1] & 0xFF) << 16) | ((fileId[2] & 0xFF) << 8) | (fileId[3] & 0xFF);
+        if (index < 0 || index >= instances.length) {
+            throw new StaleException("unknown export #" + index);
+        }
+        return instances[index];
+    }
+
+    private static long inodeNumberOf(Inode inode) {
+        return LocalFileSystem.inodeNumberOf(inode.getFileId(), INDEX_SIZE);
+    }
+
+    /**
+     * Returns the root of the nested instance if inode is its mount point, inode otherwise.
+     */
+    private static Inode crossMount(Instance instance, Inode inode) {
+        if (!instance.mounts.isEmpty()) {
+            Instance nested = instance.mounts.get(inodeNumberOf(inode));
+            if (nested != null) {
+                return nested.rootInode;
+            }
+        }
+        return inode;
+    }
+
+    /**
+     * @return true if {@code name} in {@code parent} is the mount point of a nested instance
+     */
+    private static boolean isMountPoint(Instance instance, Inode parent, String name) throws IOException {
+        if (!instance.mountParents.containsKey(inodeNumberOf(parent))) {
+            return false;
+        }
+        try {
+            return instance.mounts.containsKey(inodeNumberOf(instance.vfs.lookup(parent, name)));
+        } catch (NoEntException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if {@code name} in {@code parent} is the mount point of a nested instance or
+     * a directory above one
+     */
+    private static boolean containsMountPoint(Instance instance, Inode parent, String name) throws IOException {
+        if (instance.mounts.isEmpty()) {
+            return false;
+        }
+        long inodeNumber = inodeNumberOf(instance.vfs.lookup(parent, name));
+        for (Instance nested : instance.mounts.values()) {
+            for (Inode dir = nested.mountPoint; !isRoot(instance, dir); dir = instance.vfs.parentOf(dir)) {
+                if (inodeNumberOf(dir) == inodeNumber) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isRoot(Instance instance, Inode inode) {
+        return inodeNumberOf(inode) == instance.rootIno;
+    }
+
+    private Inode parentOfRoot(Instance instance) throws IOException {
+        if (instance.parent == null) {
+            throw new NoEntException("no parent"); //its the root
+        }
+        Instance parent = instance.parent;
+        return crossMount(parent, parent.vfs.parentOf(instance.mountPoint));
+    }
+
+    @Override
+    public int access(Subject subject, Inode inode, int mode) throws IOException {
+        Instance instance = instanceOf(inode);
+        return instance.vfs.access(subject, inode, mode);
+    }
+
+    @Override
+    public Inode create(Inode parent, Type type, String path, Subject subject, int mode) throws IOException {
+        Instance instance = instanceOf(parent);
+        return instance.vfs.create(parent, type, path, subject, mode);
+    }
+
+    /**
+     * Space is reported for the file system of the top-most instance, as exports are expected to share
+     * a device. File counts are summed up over all instances, without the mount points known to two of them.
+     */
+    @Override
+    public FsStat getFsStat() throws IOException {
+        FsStat fsStat = instances[0].vfs.getFsStat();
+        long usedFiles = fsStat.getUsedFiles();
+        for (int i = 1; i < instances.length; i++) {
+            usedFiles += instances[i].vfs.getFsStat().getUsedFiles() - 1;
+        }
+        return new FsStat(fsStat.getTotalSpace(), fsStat.getTotalFiles(), fsStat.getUsedSpace(), usedFiles);
+    }
+
+    @Override
+    public Inode getRootInode() throws IOException {
+        return instances[0].rootInode;
+    }
+
+    @Override
+    public Inode lookup(Inode parent, String path) throws IOException {
+        Instance instance = instanceOf(parent);
+        if (path.equals("..") && isRoot(instance, parent) && instance.parent != null) {
+            return parentOfRoot(instance);
+        }
+        return crossMount(instance, instance.vfs.lookup(parent, path));
+    }
+
+    @Override
+    public Inode link(Inode parent, Inode existing, String target, Subject subject) throws IOException {
+        Instance instance = instanceOf(parent);
+        if (instanceOf(existing) != instance) {
+            throw new XDevException("link across exports");
+        }
+        return instance.vfs.link(parent, existing, target, subject);
+    }
+
+    @Override
+    public DirectoryStream list(Inode inode, byte[] verifier, long cookie) throws IOException {
+        Instance instance = instanceOf(inode);
+        DirectoryStream innerStream = instance.vfs.list(inode, verifier, cookie);
+        if (!instance.mountParents.containsKey(inodeNumberOf(inode))) {
+            return innerStream;
+        }
+        List<DirectoryEntry> entries = new ArrayList<>();
+        for (DirectoryEntry entry : innerStream) {
+            Instance nested = instance.mounts.get(inodeNumberOf(entry.getInode()));
+            if (nested != null) {
+                // mount point, show the root of the nested export instead
+                entry = new DirectoryEntry(entry.getName(), nested.rootInode,
+                        nested.vfs.getattr(nested.rootInode), entry.getCookie());
+            }
+            entries.add(entry);
+        }
+        return new DirectoryStream(innerStream.getVerifier(), entries);
+    }
+
+    @Override
+    public byte[] directoryVerifier(Inode inode) throws IOException {
+        Instance instance = instanceOf(inode);
+        return instance.vfs.directoryVerifier(inode);
+    }
+
+    @Override
+    public Inode mkdir(Inode parent, String path, Subject subject, int mode) throws IOException {
+        Instance instance = instanceOf(parent);
+        return instance.vfs.mkdir(parent, path, subject, mode);
+    }
+
+    @Override
+    public boolean move(Inode src, String oldName, Inode dest, String newName) throws IOException {
+        Instance instance = instanceOf(src);
+        if (instanceOf(dest) != instance) {
+            throw new XDevException("move across exports");
+        }
+        // the nested instance would lose its root
+        if (containsMountPoint(instance, src, oldName) || isMountPoint(instance, dest, newName)) {
+            throw new XDevException("move of export root");
+        }
+        return instance.vfs.move(src, oldName, dest, newName);
+    }
+
+    @Override
+    public Inode parentOf(Inode inode) throws IOException {
+        Instance instance = instanceOf(inode);
+        if (isRoot(instance, inode)) {
+            return parentOfRoot(instance);
+        }
+        return crossMount(instance, instance.vfs.parentOf(inode));
+    }
+
+    @Override
+    public int read(Inode inode, byte[] data, long offset, int count) throws IOException {
+        Instance instance = instanceOf(inode);
+        return instance.vfs.read(inode, data, offset, count);
+    }
+
+    @Override
+    public String readlink(Inode inode) throws IOException {
+        Instance instance = instanceOf(inode);
+        return instance.vfs.readlink(inode);
+    }
+
+    @Override
+    public void remove(Inode parent, String path) throws IOException {
+        Instance instance = instanceOf(parent);
+        if (isMountPoint(instance, parent, path)) {
+            throw new AccessException("remove of export root");
+        }
+        instance.vfs.remove(parent, path);
+    }
+
+    @Override
+    public Inode symlink(Inode parent, String linkName, String targetName, Subject subject, int mode) throws IOException {
+        Instance instance = instanceOf(parent);
+        return instance.vfs.symlink(parent, linkName, targetName, subject, mode);
+    }
+
+    @Override
+    public WriteResult write(Inode inode, byte[] data, long offset, int count, StabilityLevel stabilityLevel) throws IOException {
+        Instance instance = instanceOf(inode);
+        return instance.vfs.write(inode, data, offset, count, stabilityLevel);
+    }
+
+    @Override
+    public void commit(Inode inode, long offset, int count) throws IOException {
+        Instance instance = instanceOf(inode);
+        instance.vfs.commit(inode, offset, count);
+    }
+
+    @Override
+    public CompletableFuture<Long> copyFileRange(Inode src, long srcPos, Inode dst, long dstPos, long len) {
+        try {
+            Instance instance = instanceOf(src);
+            if (instanceOf(dst) != instance) {
+                throw new XDevException("copy across exports");
+            }
+            return instance.vfs.copyFileRange(src, srcPos, dst, dstPos, len);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public Stat getattr(Inode inode) throws IOException {
+        Instance instance = instanceOf(inode);
+        return instance.vfs.getattr(inode);
+    }
+
+    @Override
+    public void setattr(Inode inode, Stat stat) throws IOException {
+        Instance instance = instanceOf(inode);
+        instance.vfs.setattr(inode, stat);
+    }
+
+    @Override
+    public nfsace4[] getAcl(Inode inode) throws IOException {
+        Instance instance = instanceOf(inode);
+        return instance.vfs.getAcl(inode);
+    }
+
+    @Override
+    public void setAcl(Inode inode, nfsace4[] acl) throws IOException {
+        Instance instance = instanceOf(inode);
+        instance.vfs.setAcl(inode, acl);
+    }
+
+    @Override
+    public boolean hasIOLayout(Inode inode) throws IOException {
+        Instance instance = instanceOf(inode);
+        return instance.vfs.hasIOLayout(inode);
+    }
+
+    @Override
+    public AclCheckable getAclCheckable() {
+        return instances[0].vfs.getAclCheckable();
+    }
+
+    @Override
+    public NfsIdMapping getIdMapper() {
+        return instances[0].vfs.getIdMapper();
+    }
+
+    @Override
+    public boolean getCaseInsensitive() {
+        return instances[0].vfs.getCaseInsensitive();
+    }
+
+    @Override
+    public boolean getCasePreserving() {
+        return instances[0].vfs.getCasePreserving();
+    }
+}
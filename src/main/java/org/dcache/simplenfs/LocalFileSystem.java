@@ -1,6 +1,6 @@
 package org.dcache.simplenfs;
 
-import com.google.common.primitives.Longs;
+import com.google.common.primitives.Ints;
 import com.sun.security.auth.UnixNumericGroupPrincipal;
 import com.sun.security.auth.UnixNumericUserPrincipal;
 import org.cliffc.high_scale_lib.NonBlockingHashMap;
@@ -9,7 +9,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.dcache.nfs.FsExport;
+import org.dcache.nfs.status.DelayException;
 import org.dcache.nfs.status.ExistException;
+import org.dcache.nfs.status.InvalException;
 import org.dcache.nfs.status.NoEntException;
 import org.dcache.nfs.status.NotEmptyException;
 import org.dcache.nfs.v4.NfsIdMapping;
@@ -28,6 +30,7 @@ import javax.security.auth.Subject;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.FileAlreadyExistsException;
@@ -36,11 +39,11 @@ import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.DosFileAttributeView;
 import java.nio.file.attribute.DosFileAttributes;
 import java.nio.file.attribute.FileTime;
@@ -50,8 +53,20 @@ import java.nio.file.attribute.UserPrincipal;
 import java.nio.file.attribute.UserPrincipalLookupService;
 import java.security.Principal;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 import org.dcache.nfs.status.NotSuppException;
 import org.dcache.nfs.status.PermException;
@@ -67,9 +82,25 @@ public class LocalFileSystem implements VirtualFileSystem {
 
     private static final Logger LOG = LoggerFactory.getLogger(LocalFileSystem.class);
 
+    /**
+     * Number of low order bits of inode numbers used by a single export, the export index
+     * goes into the high order bits to keep inode numbers unique across exports.
+     */
+    static final int EXPORT_INO_BITS = 48;
+
     private final Path _root;
+    /**
+     * Prepended to the inode number in every file id, empty if not served as an export of {@link ExportRoutingFileSystem}.
+     */
+    private final byte[] fileIdPrefix;
+    private final long inoBase;
     private final NonBlockingHashMapLong<Path> inodeToPath = new NonBlockingHashMapLong<>();
     private final NonBlockingHashMap<Path, Long> pathToInode = new NonBlockingHashMap<>();
+    private final NonBlockingHashMapLong<Inode> inodeCache = new NonBlockingHashMapLong<>();
+    /**
+     * Directory inode number to names and inode numbers of its entries, to look up without building paths.
+     */
+    private final NonBlockingHashMapLong<NonBlockingHashMap<String, Long>> children = new NonBlockingHashMapLong<>();
     private final AtomicLong fileId = new AtomicLong(1); //numbering starts at 1
     private final NfsIdMapping _idMapper = new SimpleIdMap();
     private final UserPrincipalLookupService _lookupService =
@@ -80,12 +111,94 @@ public class LocalFileSystem implements VirtualFileSystem {
         IS_UNIX = !System.getProperty("os.name").startsWith("Win");
     }
 
+    /**
+     * All attributes needed by {@link #statPath(Path, long)}, fetched with a single stat call.
+     */
+    private static final String UNIX_STAT_ATTRIBUTES =
+            "unix:mode,uid,gid,nlink,size,lastAccessTime,lastModifiedTime,creationTime";
+
+    /**
+     * Server-side copies of at least this size are performed in the background.
+     */
+    private static final long ASYNC_COPY_THRESHOLD = 64 * 1024 * 1024;
+
+    /**
+     * Max number of bytes passed to a single transferTo call.
+     */
+    private static final long COPY_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Absolute path of cp(1), used to clone files, or null if not available.
+     */
+    private static final Path CP = Stream.of("/bin/cp", "/usr/bin/cp")
+            .map(Paths::get)
+            .filter(Files::isExecutable)
+            .findFirst()
+            .orElse(null);
+
+    /**
+     * Max seconds to wait for cp(1) to clone a file.
+     */
+    private static final long REFLINK_TIMEOUT = 30;
+
+    /**
+     * Max number of server-side copies running in the background, shared by all exports.
+     */
+    private static final int COPY_THREADS = 4;
+
+    /**
+     * Max number of background copies waiting for a thread, further copies fail with NFS4ERR_DELAY.
+     */
+    private static final int COPY_QUEUE_SIZE = 64;
+
+    private static final ExecutorService COPY_EXECUTOR;
+    static {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(COPY_THREADS, COPY_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(COPY_QUEUE_SIZE), r -> {
+                    Thread t = new Thread(r, "server-side-copy");
+                    t.setDaemon(true);
+                    return t;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        COPY_EXECUTOR = executor;
+    }
+
+    /**
+     * File stores which don't support reflinks, learned from the first clone attempt failing with
+     * EOPNOTSUPP or EXDEV.
+     */
+    private final NonBlockingHashMap<FileStore, Boolean> reflinkSupport = new NonBlockingHashMap<>();
+
     private Inode toFh(long inodeNumber) {
-        return Inode.forFile(Longs.toByteArray(inodeNumber));
+        // inodes are immutable, thus the same instance can be handed out for every request
+        Inode inode = inodeCache.get(inodeNumber);
+        if (inode == null) {
+            byte[] fh = Arrays.copyOf(fileIdPrefix, fileIdPrefix.length + Long.BYTES);
+            for (int i = 0; i < Long.BYTES; i++) {
+                fh[fh.length - 1 - i] = (byte) (inodeNumber >>> (8 * i));
+            }
+            inode = Inode.forFile(fh);
+            Inode otherInode = inodeCache.putIfAbsent(inodeNumber, inode);
+            if (otherInode != null) {
+                inode = otherInode;
+            }
+        }
+        return inode;
     }
 
     private long getInodeNumber(Inode inode) {
-        return Longs.fromByteArray(inode.getFileId());
+        return inodeNumberOf(inode.getFileId(), fileIdPrefix.length);
+    }
+
+    /**
+     * Decodes the inode number stored at {@code offset} in a file id.
+     */
+    static long inodeNumberOf(byte[] fileId, int offset) {
+        long inodeNumber = 0;
+        for (int i = offset; i < offset + Long.BYTES; i++) {
+            inodeNumber = (inodeNumber << 8) | (fileId[i] & 0xFF);
+        }
+        return inodeNumber;
     }
 
     private Path resolveInode(long inodeNumber) throws NoEntException {
@@ -127,6 +240,21 @@ public class LocalFileSystem implements VirtualFileSystem {
                 throw new IllegalStateException("path " + path + " already mapped to " + otherInodeNumber);
             }
         }
+
+        if (!path.equals(_root)) {
+            Long parentInodeNumber = pathToInode.get(path.getParent());
+            if (parentInodeNumber != null) {
+                NonBlockingHashMap<String, Long> entries = children.get(parentInodeNumber);
+                if (entries == null) {
+                    entries = new NonBlockingHashMap<>();
+                    NonBlockingHashMap<String, Long> otherEntries = children.putIfAbsent(parentInodeNumber, entries);
+                    if (otherEntries != null) {
+                        entries = otherEntries;
+                    }
+                }
+                entries.put(path.getFileName().toString(), inodeNumber);
+            }
+        }
     }
 
     private void map(long inodeNumber, Path path) {
@@ -141,15 +269,72 @@ public class LocalFileSystem implements VirtualFileSystem {
         if (pathToInode.remove(path) != inodeNumber) {
             throw new IllegalStateException();
         }
+        inodeCache.remove(inodeNumber);
+        children.remove(inodeNumber);
+        Long parentInodeNumber = pathToInode.get(path.getParent());
+        if (parentInodeNumber != null) {
+            NonBlockingHashMap<String, Long> entries = children.get(parentInodeNumber);
+            if (entries != null) {
+                entries.remove(path.getFileName().toString(), inodeNumber);
+            }
+        }
     }
 
     private void remap(long inodeNumber, Path oldPath, Path newPath) {
         //TODO - attempt rollback?
+        Inode inode = inodeCache.get(inodeNumber);
+        NonBlockingHashMap<String, Long> entries = children.get(inodeNumber);
         unmap(inodeNumber, oldPath);
         map(inodeNumber, newPath, true);
+        if (inode != null) {
+            // file handle does not change on rename
+            inodeCache.putIfAbsent(inodeNumber, inode);
+        }
+        if (entries != null) {
+            // neither does the content of a directory, but the paths of all descendants do
+            children.putIfAbsent(inodeNumber, entries);
+            remapDescendants(entries, oldPath, newPath);
+        }
+    }
+
+    private void remapDescendants(NonBlockingHashMap<String, Long> entries, Path oldPath, Path newPath) {
+        for (Map.Entry<String, Long> e : entries.entrySet()) {
+            long inodeNumber = e.getValue();
+            Path oldChildPath = oldPath.resolve(e.getKey());
+            Path newChildPath = newPath.resolve(e.getKey());
+            if (!oldChildPath.equals(inodeToPath.get(inodeNumber))) {
+                continue; // removed or renamed meanwhile
+            }
+            inodeToPath.put(inodeNumber, newChildPath);
+            pathToInode.remove(oldChildPath, inodeNumber);
+            pathToInode.put(newChildPath, inodeNumber);
+            NonBlockingHashMap<String, Long> grandChildren = children.get(inodeNumber);
+            if (grandChildren != null) {
+                remapDescendants(grandChildren, oldChildPath, newChildPath);
+            }
+        }
     }
 
     public LocalFileSystem(Path root, Iterable<FsExport> exportIterable) throws IOException {
+        this(root, exportIterable, Collections.emptySet(), new byte[0], 0);
+    }
+
+    /**
+     * File system of a single export served by {@link ExportRoutingFileSystem}. File ids start with
+     * the four byte export index, followed by the inode number; the export index is also put into
+     * the high order bits of reported inode numbers.
+     *
+     * @param excludedDirs root directories of nested exports
+     * @param exportIndex index of the export, less than 2^(64 - {@value #EXPORT_INO_BITS})
+     */
+    public LocalFileSystem(Path root, Set<Path> excludedDirs, int exportIndex) throws IOException {
+        this(root, Collections.emptyList(), excludedDirs, Ints.toByteArray(exportIndex), (long) exportIndex << EXPORT_INO_BITS);
+    }
+
+    private LocalFileSystem(Path root, Iterable<FsExport> exportIterable, Set<Path> excludedDirs,
+            byte[] fileIdPrefix, long inoBase) throws IOException {
+        this.fileIdPrefix = fileIdPrefix;
+        this.inoBase = inoBase;
         _root = root;
         assert (Files.exists(_root));
         for (FsExport export : exportIterable) {
@@ -172,6 +357,9 @@ public class LocalFileSystem implements VirtualFileSystem {
                     return FileVisitResult.CONTINUE;
                 }
                 map(fileId.getAndIncrement(), dir);
+                if (excludedDirs.contains(dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
                 return FileVisitResult.CONTINUE;
             }
 
@@ -222,16 +410,23 @@ public class LocalFileSystem implements VirtualFileSystem {
         //2. we might accidentally allow composite paths here ("/dome/dir/down")
         //3. we dont actually check that the parent exists
         long parentInodeNumber = getInodeNumber(parent);
-        Path parentPath = resolveInode(parentInodeNumber);
-        Path child;
         if(path.equals(".")) {
-            child = parentPath;
-        } else if(path.equals("..")) {
-            child = parentPath.getParent();
-        } else {
-            child = parentPath.resolve(path);
+            resolveInode(parentInodeNumber);
+            return toFh(parentInodeNumber);
+        }
+        if(path.equals("..")) {
+            Path parentPath = resolveInode(parentInodeNumber);
+            if (parentPath.equals(_root)) {
+                throw new NoEntException("no parent"); //its the root
+            }
+            return toFh(resolvePath(parentPath.getParent()));
+        }
+        NonBlockingHashMap<String, Long> entries = children.get(parentInodeNumber);
+        Long childInodeNumber = entries == null ? null : entries.get(path);
+        if (childInodeNumber == null) {
+            Path parentPath = resolveInode(parentInodeNumber);
+            throw new NoEntException("path " + parentPath + "/" + path);
         }
-        long childInodeNumber = resolvePath(child);
         return toFh(childInodeNumber);
     }
 
@@ -454,38 +649,161 @@ public class LocalFileSystem implements VirtualFileSystem {
         throw new UnsupportedOperationException("Not supported yet.");
     }
 
-    private Stat statPath(Path p, long inodeNumber) throws IOException {
+    @Override
+    public CompletableFuture<Long> copyFileRange(Inode src, long srcPos, Inode dst, long dstPos, long len) {
+        try {
+            long srcInodeNumber = getInodeNumber(src);
+            long dstInodeNumber = getInodeNumber(dst);
+            Path srcPath = resolveInode(srcInodeNumber);
+            Path dstPath = resolveInode(dstInodeNumber);
+            long size = Files.size(srcPath);
+            if (srcPos > size) {
+                throw new InvalException("Source offset " + srcPos + " beyond end of file");
+            }
+            // zero length means 'up to the end of file'
+            long count = len == 0 ? size - srcPos : Math.min(len, size - srcPos);
+            if (srcInodeNumber == dstInodeNumber && srcPos < dstPos + count && dstPos < srcPos + count) {
+                throw new InvalException("Overlapping ranges in copy within " + srcPath);
+            }
+            if (count <= 0) {
+                return CompletableFuture.completedFuture(0L);
+            }
 
-        Class<? extends  BasicFileAttributeView> attributeClass =
-                IS_UNIX ? PosixFileAttributeView.class : DosFileAttributeView.class;
+            if (srcPos == 0 && dstPos == 0 && count == size && Files.size(dstPath) == 0 && mayReflink(srcPath)) {
+                // cloning forks cp, never on the request thread
+                return CompletableFuture.supplyAsync(() -> {
+                    try {
+                        if (reflink(srcPath, dstPath)) {
+                            return count;
+                        }
+                        return transfer(srcPath, srcPos, dstPath, dstPos, count);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, COPY_EXECUTOR);
+            }
 
-        BasicFileAttributes attrs = Files.getFileAttributeView(p, attributeClass, NOFOLLOW_LINKS).readAttributes();
+            if (count < ASYNC_COPY_THRESHOLD) {
+                return CompletableFuture.completedFuture(transfer(srcPath, srcPos, dstPath, dstPos, count));
+            }
 
-        Stat stat = new Stat();
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    long copied = transfer(srcPath, srcPos, dstPath, dstPos, count);
+                    LOG.info("Server-side copy {} -> {} done: {} bytes", srcPath, dstPath, copied);
+                    return copied;
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, COPY_EXECUTOR);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(new DelayException("Too many server-side copies", e));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 
-        stat.setATime(attrs.lastAccessTime().toMillis());
-        stat.setCTime(attrs.creationTime().toMillis());
-        stat.setMTime(attrs.lastModifiedTime().toMillis());
+    private long transfer(Path srcPath, long srcPos, Path dstPath, long dstPos, long len) throws IOException {
+        try (FileChannel in = FileChannel.open(srcPath, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(dstPath, StandardOpenOption.WRITE)) {
+            long copied = 0;
+            while (copied < len) {
+                long n = in.transferTo(srcPos + copied, Math.min(len - copied, COPY_CHUNK_SIZE), out.position(dstPos + copied));
+                if (n <= 0) {
+                    break;
+                }
+                copied += n;
+                LOG.debug("Server-side copy {} -> {}: {} of {} bytes", srcPath, dstPath, copied, len);
+            }
+            return copied;
+        }
+    }
+
+    private boolean mayReflink(Path path) throws IOException {
+        return IS_UNIX && CP != null && reflinkSupport.get(Files.getFileStore(path)) != Boolean.FALSE;
+    }
+
+    /**
+     * Try to clone the whole file by sharing data blocks (reflink), supported by btrfs, xfs and others.
+     * A file store is not tried again once a clone failed as not supported there, other failures
+     * (e.g. ENOSPC or a timeout) fall back to copying this file only.
+     * @return true if the file was cloned
+     */
+    private boolean reflink(Path srcPath, Path dstPath) throws IOException {
+        FileStore store = Files.getFileStore(srcPath);
+        try {
+            // no API for FICLONE ioctl in java, cp keeps the destination inode
+            ProcessBuilder pb = new ProcessBuilder(CP.toString(), "--reflink=always", "--", srcPath.toString(), dstPath.toString())
+                    .redirectErrorStream(true);
+            // untranslated error messages
+            pb.environment().put("LC_ALL", "C");
+            Process cp = pb.start();
+            // only a line of error message expected, the pipe buffer can't fill up
+            if (!cp.waitFor(REFLINK_TIMEOUT, TimeUnit.SECONDS)) {
+                cp.destroyForcibly().waitFor();
+                LOG.warn("Reflink of {} timed out", srcPath);
+                return false;
+            }
+            String error = new String(cp.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+            if (cp.exitValue() == 0) {
+                if (reflinkSupport.putIfAbsent(store, Boolean.TRUE) == null) {
+                    LOG.info("Reflinks supported on {}", store);
+                }
+                return true;
+            }
+            if (error.contains("Operation not supported") || error.contains("Invalid cross-device link")) {
+                if (reflinkSupport.put(store, Boolean.FALSE) != Boolean.FALSE) {
+                    LOG.info("Reflinks not supported on {}", store);
+                }
+            } else {
+                LOG.warn("Reflink of {} failed: {}", srcPath, error);
+            }
+            return false;
+        } catch (IOException e) {
+            LOG.debug("Reflink of {} failed: {}", srcPath, e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private Stat statPath(Path p, long inodeNumber) throws IOException {
+
+        Stat stat = new Stat();
 
         if (IS_UNIX) {
-            stat.setGid((Integer) Files.getAttribute(p, "unix:gid", NOFOLLOW_LINKS));
-            stat.setUid((Integer) Files.getAttribute(p, "unix:uid", NOFOLLOW_LINKS));
-            stat.setMode((Integer) Files.getAttribute(p, "unix:mode", NOFOLLOW_LINKS));
-            stat.setNlink((Integer) Files.getAttribute(p, "unix:nlink", NOFOLLOW_LINKS));
+            // one stat(2) call for all attributes instead of one per attribute
+            Map<String, Object> attrs = Files.readAttributes(p, UNIX_STAT_ATTRIBUTES, NOFOLLOW_LINKS);
+
+            long mtime = ((FileTime) attrs.get("lastModifiedTime")).toMillis();
+            stat.setATime(((FileTime) attrs.get("lastAccessTime")).toMillis());
+            stat.setCTime(((FileTime) attrs.get("creationTime")).toMillis());
+            stat.setMTime(mtime);
+            stat.setGid((Integer) attrs.get("gid"));
+            stat.setUid((Integer) attrs.get("uid"));
+            stat.setMode((Integer) attrs.get("mode"));
+            stat.setNlink((Integer) attrs.get("nlink"));
+            stat.setSize((Long) attrs.get("size"));
+            stat.setGeneration(mtime);
         } else {
-            DosFileAttributes dosAttrs = (DosFileAttributes)attrs;
+            DosFileAttributes dosAttrs = Files.getFileAttributeView(p, DosFileAttributeView.class, NOFOLLOW_LINKS).readAttributes();
+            long mtime = dosAttrs.lastModifiedTime().toMillis();
+            stat.setATime(dosAttrs.lastAccessTime().toMillis());
+            stat.setCTime(dosAttrs.creationTime().toMillis());
+            stat.setMTime(mtime);
             stat.setGid(0);
             stat.setUid(0);
             int type = dosAttrs.isSymbolicLink() ? Stat.S_IFLNK : dosAttrs.isDirectory() ? Stat.S_IFDIR : Stat.S_IFREG;
             stat.setMode( type |(dosAttrs.isReadOnly()? 0400 : 0600));
             stat.setNlink(1);
+            stat.setSize(dosAttrs.size());
+            stat.setGeneration(mtime);
         }
 
         stat.setDev(17);
-        stat.setIno(inodeNumber);
+        stat.setIno(inoBase | inodeNumber);
         stat.setRdev(17);
-        stat.setSize(attrs.size());
-        stat.setGeneration(attrs.lastModifiedTime().toMillis());
 
         return stat;
     }
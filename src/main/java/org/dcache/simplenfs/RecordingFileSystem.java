@@ -0,0 +1,467 @@
+package org.dcache.simplenfs;
+
+import com.sun.security.auth.UnixNumericGroupPrincipal;
+import com.sun.security.auth.UnixNumericUserPrincipal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.dcache.nfs.v4.NfsIdMapping;
+import org.dcache.nfs.v4.xdr.nfsace4;
+import org.dcache.nfs.vfs.AclCheckable;
+import org.dcache.nfs.vfs.DirectoryEntry;
+import org.dcache.nfs.vfs.DirectoryStream;
+import org.dcache.nfs.vfs.FsStat;
+import org.dcache.nfs.vfs.Inode;
+import org.dcache.nfs.vfs.Stat;
+import org.dcache.nfs.vfs.Stat.Type;
+import org.dcache.nfs.vfs.VirtualFileSystem;
+
+import javax.security.auth.Subject;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Principal;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A {@link VirtualFileSystem} which passes all requests to another file system and
+ * writes the operations, their arguments and timing into a trace file. The trace
+ * can be replayed later with {@link TraceReplay}. See {@link TraceOp} for the file format.
+ *
+ * Only sizes of the transferred data are recorded, not the data itself. The namespace at
+ * the start of the recording is stored with types, sizes and ownership, but without data.
+ *
+ * Each request thread encodes its records into a buffer of its own and hands them to a single
+ * writer thread, thus requests never wait for the trace file, unless the writer falls more than
+ * {@link #QUEUE_SIZE} records behind. Records are written in the order the operations complete.
+ * The trace does not tell which client or thread issued an operation, thus concurrency of the
+ * recorded workload is not preserved: {@link TraceReplay} issues all operations one after another.
+ */
+public class RecordingFileSystem implements VirtualFileSystem, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RecordingFileSystem.class);
+
+    /**
+     * Max number of records waiting for the writer thread.
+     */
+    private static final int QUEUE_SIZE = 64 * 1024;
+
+    /**
+     * Tells the writer thread to stop.
+     */
+    private static final byte[] END_OF_TRACE = new byte[0];
+
+    @FunctionalInterface
+    private interface Call<T> {
+        T call() throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface Arguments<T> {
+        void write(DataOutputStream out, T result) throws IOException;
+    }
+
+    /**
+     * Per thread buffer to encode a single record.
+     */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        final DataOutputStream data = new DataOutputStream(this);
+    }
+
+    private final VirtualFileSystem inner;
+    private final DataOutputStream out;
+    private final long startTime;
+    private final ThreadLocal<RecordBuffer> recordBuffer = ThreadLocal.withInitial(RecordBuffer::new);
+    private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(QUEUE_SIZE);
+    private final Thread writer;
+    private volatile boolean failed;
+    private volatile boolean closed;
+
+    /**
+     * Writes the header and the namespace snapshot before returning. The snapshot lists and stats
+     * every entry below the root, which takes a while and makes the trace file large for big
+     * namespaces; the time taken and number of entries are logged.
+     */
+    public RecordingFileSystem(VirtualFileSystem inner, Path traceFile) throws IOException {
+        this.inner = inner;
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(traceFile)));
+        out.writeInt(TraceOp.MAGIC);
+        out.writeShort(TraceOp.VERSION);
+        writeInode(out, inner.getRootInode());
+        LOG.info("Recording namespace snapshot into {}", traceFile);
+        long start = System.nanoTime();
+        long entries = writeNamespace(inner.getRootInode());
+        LOG.info("Namespace snapshot of {} entries recorded in {} ms", entries,
+                (System.nanoTime() - start) / 1_000_000);
+        startTime = System.nanoTime();
+        writer = new Thread(this::writeRecords, "trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Write all entries below the root, thus the replay can start with the same namespace.
+     * @return number of entries written
+     */
+    private long writeNamespace(Inode root) throws IOException {
+        long count = 0;
+        Deque<Inode> dirs = new ArrayDeque<>();
+        dirs.push(root);
+        while (!dirs.isEmpty()) {
+            Inode dir = dirs.pop();
+            for (DirectoryEntry entry : inner.list(dir, DirectoryStream.ZERO_VERIFIER, 0)) {
+                String name = entry.getName();
+                if (name.equals(".") || name.equals("..")) {
+                    continue;
+                }
+                Stat stat = entry.getStat();
+                Type type = stat.type();
+                out.writeBoolean(true);
+                writeInode(out, dir);
+                out.writeUTF(name);
+                out.writeUTF(type.name());
+                out.writeInt(stat.getMode());
+                out.writeInt(stat.getUid());
+                out.writeInt(stat.getGid());
+                out.writeLong(stat.getSize());
+                writeInode(out, entry.getInode());
+                count++;
+                if (type == Type.SYMLINK) {
+                    out.writeUTF(inner.readlink(entry.getInode()));
+                } else if (type == Type.DIRECTORY) {
+                    dirs.push(entry.getInode());
+                }
+            }
+        }
+        out.writeBoolean(false);
+        return count;
+    }
+
+    private void writeRecords() {
+        try {
+            while (true) {
+                byte[] record = queue.take();
+                if (record == END_OF_TRACE) {
+                    break;
+                }
+                if (!failed) {
+                    try {
+                        out.write(record);
+                    } catch (IOException e) {
+                        failed = true;
+                        LOG.error("Failed to write trace, recording stopped: {}", e.getMessage());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private <T> T record(TraceOp op, Call<T> call, Arguments<T> arguments) throws IOException {
+        long start = System.nanoTime();
+        T result = null;
+        boolean ok = false;
+        try {
+            result = call.call();
+            ok = true;
+            return result;
+        } finally {
+            long duration = System.nanoTime() - start;
+            if (!failed && !closed) {
+                RecordBuffer buffer = recordBuffer.get();
+                buffer.reset();
+                try {
+                    DataOutputStream data = buffer.data;
+                    data.writeByte(op.getCode());
+                    data.writeLong(start - startTime);
+                    data.writeLong(duration);
+                    data.writeBoolean(ok);
+                    arguments.write(data, result);
+                    queue.put(buffer.toByteArray());
+                } catch (IOException e) {
+                    // not thrown by the in-memory buffer
+                    LOG.error("Failed to encode trace record: {}", e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static void writeInode(DataOutputStream out, Inode inode) throws IOException {
+        if (inode == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] fileId = inode.getFileId();
+            out.writeInt(fileId.length);
+            out.write(fileId);
+        }
+    }
+
+    private static void writeSubject(DataOutputStream out, Subject subject) throws IOException {
+        long uid = -1;
+        long gid = -1;
+        for (Principal principal : subject.getPrincipals()) {
+            if (principal instanceof UnixNumericUserPrincipal) {
+                uid = ((UnixNumericUserPrincipal)principal).longValue();
+            }
+            if (principal instanceof UnixNumericGroupPrincipal && ((UnixNumericGroupPrincipal)principal).isPrimaryGroup()) {
+                gid = ((UnixNumericGroupPrincipal)principal).longValue();
+            }
+        }
+        out.writeLong(uid);
+        out.writeLong(gid);
+    }
+
+    @Override
+    public int access(Subject subject, Inode inode, int mode) throws IOException {
+        return record(TraceOp.ACCESS, () -> inner.access(subject, inode, mode), (o, r) -> {
+            writeSubject(o, subject);
+            writeInode(o, inode);
+            o.writeInt(mode);
+        });
+    }
+
+    @Override
+    public Inode create(Inode parent, Type type, String path, Subject subject, int mode) throws IOException {
+        return record(TraceOp.CREATE, () -> inner.create(parent, type, path, subject, mode), (o, r) -> {
+            writeSubject(o, subject);
+            writeInode(o, parent);
+            o.writeUTF(type.name());
+            o.writeUTF(path);
+            o.writeInt(mode);
+            writeInode(o, r);
+        });
+    }
+
+    @Override
+    public FsStat getFsStat() throws IOException {
+        return inner.getFsStat();
+    }
+
+    @Override
+    public Inode getRootInode() throws IOException {
+        return inner.getRootInode();
+    }
+
+    @Override
+    public Inode lookup(Inode parent, String path) throws IOException {
+        return record(TraceOp.LOOKUP, () -> inner.lookup(parent, path), (o, r) -> {
+            writeInode(o, parent);
+            o.writeUTF(path);
+            writeInode(o, r);
+        });
+    }
+
+    @Override
+    public Inode link(Inode parent, Inode existing, String target, Subject subject) throws IOException {
+        return record(TraceOp.LINK, () -> inner.link(parent, existing, target, subject), (o, r) -> {
+            writeSubject(o, subject);
+            writeInode(o, parent);
+            writeInode(o, existing);
+            o.writeUTF(target);
+            writeInode(o, r);
+        });
+    }
+
+    @Override
+    public DirectoryStream list(Inode inode, byte[] verifier, long cookie) throws IOException {
+        return record(TraceOp.LIST, () -> inner.list(inode, verifier, cookie), (o, r) -> {
+            writeInode(o, inode);
+            o.writeLong(cookie);
+        });
+    }
+
+    @Override
+    public byte[] directoryVerifier(Inode inode) throws IOException {
+        return inner.directoryVerifier(inode);
+    }
+
+    @Override
+    public Inode mkdir(Inode parent, String path, Subject subject, int mode) throws IOException {
+        return record(TraceOp.MKDIR, () -> inner.mkdir(parent, path, subject, mode), (o, r) -> {
+            writeSubject(o, subject);
+            writeInode(o, parent);
+            o.writeUTF(path);
+            o.writeInt(mode);
+            writeInode(o, r);
+        });
+    }
+
+    @Override
+    public boolean move(Inode src, String oldName, Inode dest, String newName) throws IOException {
+        return record(TraceOp.MOVE, () -> inner.move(src, oldName, dest, newName), (o, r) -> {
+            writeInode(o, src);
+            o.writeUTF(oldName);
+            writeInode(o, dest);
+            o.writeUTF(newName);
+        });
+    }
+
+    @Override
+    public Inode parentOf(Inode inode) throws IOException {
+        return record(TraceOp.PARENTOF, () -> inner.parentOf(inode), (o, r) -> {
+            writeInode(o, inode);
+            writeInode(o, r);
+        });
+    }
+
+    @Override
+    public int read(Inode inode, byte[] data, long offset, int count) throws IOException {
+        return record(TraceOp.READ, () -> inner.read(inode, data, offset, count), (o, r) -> {
+            writeInode(o, inode);
+            o.writeLong(offset);
+            o.writeInt(count);
+        });
+    }
+
+    @Override
+    public String readlink(Inode inode) throws IOException {
+        return record(TraceOp.READLINK, () -> inner.readlink(inode), (o, r) -> {
+            writeInode(o, inode);
+        });
+    }
+
+    @Override
+    public void remove(Inode parent, String path) throws IOException {
+        record(TraceOp.REMOVE, () -> {
+            inner.remove(parent, path);
+            return null;
+        }, (o, r) -> {
+            writeInode(o, parent);
+            o.writeUTF(path);
+        });
+    }
+
+    @Override
+    public Inode symlink(Inode parent, String linkName, String targetName, Subject subject, int mode) throws IOException {
+        return record(TraceOp.SYMLINK, () -> inner.symlink(parent, linkName, targetName, subject, mode), (o, r) -> {
+            writeSubject(o, subject);
+            writeInode(o, parent);
+            o.writeUTF(linkName);
+            o.writeUTF(targetName);
+            o.writeInt(mode);
+            writeInode(o, r);
+        });
+    }
+
+    @Override
+    public WriteResult write(Inode inode, byte[] data, long offset, int count, StabilityLevel stabilityLevel) throws IOException {
+        return record(TraceOp.WRITE, () -> inner.write(inode, data, offset, count, stabilityLevel), (o, r) -> {
+            writeInode(o, inode);
+            o.writeLong(offset);
+            o.writeInt(count);
+            o.writeByte(stabilityLevel.ordinal());
+        });
+    }
+
+    @Override
+    public void commit(Inode inode, long offset, int count) throws IOException {
+        record(TraceOp.COMMIT, () -> {
+            inner.commit(inode, offset, count);
+            return null;
+        }, (o, r) -> {
+            writeInode(o, inode);
+            o.writeLong(offset);
+            o.writeInt(count);
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> copyFileRange(Inode src, long srcPos, Inode dst, long dstPos, long len) {
+        try {
+            // the duration covers the synchronous part of the copy only
+            return record(TraceOp.COPY, () -> inner.copyFileRange(src, srcPos, dst, dstPos, len), (o, r) -> {
+                writeInode(o, src);
+                o.writeLong(srcPos);
+                writeInode(o, dst);
+                o.writeLong(dstPos);
+                o.writeLong(len);
+            });
+        } catch (IOException e) {
+            // not thrown, the call itself reports errors through the future
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public Stat getattr(Inode inode) throws IOException {
+        return record(TraceOp.GETATTR, () -> inner.getattr(inode), (o, r) -> {
+            writeInode(o, inode);
+        });
+    }
+
+    @Override
+    public void setattr(Inode inode, Stat stat) throws IOException {
+        record(TraceOp.SETATTR, () -> {
+            inner.setattr(inode, stat);
+            return null;
+        }, (o, r) -> {
+            writeInode(o, inode);
+            // only attributes which cause real work on the backend are recorded
+            o.writeLong(stat.isDefined(Stat.StatAttribute.SIZE) ? stat.getSize() : -1);
+            o.writeInt(stat.isDefined(Stat.StatAttribute.MODE) ? stat.getMode() : -1);
+        });
+    }
+
+    @Override
+    public nfsace4[] getAcl(Inode inode) throws IOException {
+        return inner.getAcl(inode);
+    }
+
+    @Override
+    public void setAcl(Inode inode, nfsace4[] acl) throws IOException {
+        inner.setAcl(inode, acl);
+    }
+
+    @Override
+    public boolean hasIOLayout(Inode inode) throws IOException {
+        return inner.hasIOLayout(inode);
+    }
+
+    @Override
+    public AclCheckable getAclCheckable() {
+        return inner.getAclCheckable();
+    }
+
+    @Override
+    public NfsIdMapping getIdMapper() {
+        return inner.getIdMapper();
+    }
+
+    @Override
+    public boolean getCaseInsensitive() {
+        return inner.getCaseInsensitive();
+    }
+
+    @Override
+    public boolean getCasePreserving() {
+        return inner.getCasePreserving();
+    }
+
+    /**
+     * Writes all pending records and closes the trace file. Operations completing afterwards are not recorded.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            queue.put(END_OF_TRACE);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failed = true;
+        out.close();
+    }
+}
@@ -1,6 +1,7 @@
 package org.dcache.simplenfs;
 
 import org.dcache.nfs.ExportFile;
+import org.dcache.nfs.FsExport;
 import org.dcache.nfs.v3.MountServer;
 import org.dcache.nfs.v3.NfsServerV3;
 import org.dcache.nfs.v3.xdr.mount_prot;
@@ -19,6 +20,7 @@ import java.io.InputStreamReader;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.stream.Collectors;
 
 public class SimpleNfsServer implements Closeable {
@@ -26,12 +28,35 @@ public class SimpleNfsServer implements Closeable {
     private final Path root;
     private final int port;
     private final String name;
+    private final RecordingFileSystem recorder;
+    private final TieredFileSystem tiers;
 
     public SimpleNfsServer(Path root) {
         this(0, 2049, root, null, null);
     }
 
     public SimpleNfsServer(int nfsVers, int port, Path root, ExportFile exportFile, String name) {
+        this(nfsVers, port, root, exportFile, name, null, null, 0);
+    }
+
+    /**
+     * @param traceFile if not null, all file system operations are recorded into this file,
+     *                  see {@link TraceReplay}
+     * @param fastTier if not null, directory on a fast device to keep the data of hot files,
+     *                 see {@link TieredFileSystem}
+     * @param fastTierCapacity max number of bytes to keep in the fast tier
+     */
+    public SimpleNfsServer(int nfsVers, int port, Path root, ExportFile exportFile, String name,
+            Path traceFile, Path fastTier, long fastTierCapacity) {
+        this(nfsVers, port, root, exportFile, name, traceFile, fastTier, fastTierCapacity, null);
+    }
+
+    /**
+     * @param factory if not null, creates the file system of each export, e.g. to tier only some
+     *                of them. The trace and the fast tier above apply to all exports.
+     */
+    public SimpleNfsServer(int nfsVers, int port, Path root, ExportFile exportFile, String name,
+            Path traceFile, Path fastTier, long fastTierCapacity, ExportRoutingFileSystem.FileSystemFactory factory) {
         try {
             NfsServerV3 nfs3 = null;
             NFSServerV41 nfs4 = null;
@@ -54,7 +79,22 @@ public class SimpleNfsServer implements Closeable {
             }
             this.name = name;
 
-            VirtualFileSystem vfs = new LocalFileSystem(this.root, exportFile.exports().collect(Collectors.toList()));
+            List<FsExport> exports = exportFile.exports().collect(Collectors.toList());
+            VirtualFileSystem vfs = factory == null
+                    ? new ExportRoutingFileSystem(this.root, exports)
+                    : new ExportRoutingFileSystem(this.root, exports, factory);
+            if (fastTier != null) {
+                tiers = new TieredFileSystem(vfs, fastTier, fastTierCapacity);
+                vfs = tiers;
+            } else {
+                tiers = null;
+            }
+            if (traceFile != null) {
+                recorder = new RecordingFileSystem(vfs, traceFile);
+                vfs = recorder;
+            } else {
+                recorder = null;
+            }
 
             nfsSvc = new OncRpcSvcBuilder()
                     .withPort(this.port)
@@ -97,6 +137,12 @@ public class SimpleNfsServer implements Closeable {
     @Override
     public void close() throws IOException {
         nfsSvc.stop();
+        if (tiers != null) {
+            tiers.close();
+        }
+        if (recorder != null) {
+            recorder.close();
+        }
     }
 
     public Path getRoot() {
@@ -0,0 +1,131 @@
+package org.dcache.simplenfs;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.spi.StopOptionHandler;
+
+import org.dcache.nfs.v3.xdr.mount_prot;
+import org.dcache.nfs.v3.xdr.nfs3_prot;
+import org.dcache.nfs.v4.xdr.nfs4_prot;
+import org.dcache.oncrpc4j.rpc.OncRpcClient;
+import org.dcache.oncrpc4j.rpc.RpcAuthTypeNone;
+import org.dcache.oncrpc4j.rpc.RpcCall;
+import org.dcache.oncrpc4j.rpc.RpcTransport;
+import org.dcache.oncrpc4j.rpc.net.IpProtocolType;
+import org.dcache.oncrpc4j.xdr.XdrVoid;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time from process start until a server answers its first NFSv4 NULL call.
+ * Used to compare the plain jar, the jar with a class-data-sharing archive and the native
+ * executable:
+ * <pre>
+ *   StartupBenchmark -port 12049 -- java -jar simple-nfs-jar-with-dependencies.jar -port 12049
+ *   StartupBenchmark -port 12049 -- java -XX:SharedArchiveFile=simple-nfs.jsa -jar ... -port 12049
+ *   StartupBenchmark -port 12049 -- ./simple-nfs -port 12049
+ * </pre>
+ * The server is stopped by closing its standard input after the first answered request,
+ * or after {@code -hold} seconds, which leaves time to mount it and run a real workload.
+ * Before stopping, the NULL procedures of all registered programs are called once.
+ */
+public class StartupBenchmark {
+
+    @Option(name = "-port", usage = "TCP port the server listens on", metaVar = "<port>")
+    private int port = 12049;
+    @Option(name = "-runs", usage = "number of server starts to measure", metaVar = "<int>")
+    private int runs = 10;
+    @Option(name = "-timeout", usage = "max seconds to wait for the first answer", metaVar = "<seconds>")
+    private int timeout = 60;
+    @Option(name = "-hold", usage = "seconds to keep the server running after the first answer", metaVar = "<seconds>")
+    private int hold = 0;
+    @Argument(metaVar = "<command>", usage = "command to start the server", required = true)
+    @Option(name = "--", handler = StopOptionHandler.class)
+    private List<String> command = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        new StartupBenchmark().run(args);
+    }
+
+    public void run(String[] args) throws IOException, InterruptedException {
+
+        CmdLineParser parser = new CmdLineParser(this);
+
+        try {
+            parser.parseArgument(args);
+        } catch (CmdLineException e) {
+            System.err.println();
+            System.err.println(e.getMessage());
+            System.err.println("Usage:");
+            System.err.println("    StartupBenchmark [options...] -- <command...>");
+            System.err.println();
+            parser.printUsage(System.err);
+            System.exit(1);
+        }
+
+        long[] times = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            times[i] = measure();
+            System.out.printf("run %d: %.1f ms%n", i + 1, times[i] / 1_000_000.0);
+        }
+
+        Arrays.sort(times);
+        System.out.printf("time-to-first-request: min %.1f ms, median %.1f ms, max %.1f ms%n",
+                times[0] / 1_000_000.0, times[runs / 2] / 1_000_000.0, times[runs - 1] / 1_000_000.0);
+    }
+
+    private long measure() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(timeout);
+        Process server = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        try {
+            while (true) {
+                if (!server.isAlive()) {
+                    throw new IOException("server exited with code " + server.exitValue());
+                }
+                if (System.nanoTime() > deadline) {
+                    throw new IOException("no answer within " + timeout + " seconds");
+                }
+                if (ping(nfs4_prot.NFS4_PROGRAM, nfs4_prot.NFS_V4, nfs4_prot.NFSPROC4_NULL_4)) {
+                    long elapsed = System.nanoTime() - start;
+                    // not timed; servers started with -nfsvers 4 do not answer
+                    ping(nfs3_prot.NFS_PROGRAM, nfs3_prot.NFS_V3, nfs3_prot.NFSPROC3_NULL_3);
+                    ping(mount_prot.MOUNT_PROGRAM, mount_prot.MOUNT_V3, mount_prot.MOUNTPROC3_NULL_3);
+                    if (hold > 0) {
+                        System.out.printf("server is up on port %d, stopping in %d seconds%n", port, hold);
+                        server.waitFor(hold, TimeUnit.SECONDS);
+                    }
+                    return elapsed;
+                }
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+        } finally {
+            // App shuts down cleanly on end of input, which also lets a JVM write its CDS archive
+            server.getOutputStream().close();
+            if (!server.waitFor(timeout, TimeUnit.SECONDS)) {
+                server.destroyForcibly().waitFor();
+            }
+        }
+    }
+
+    private boolean ping(int program, int version, int procedure) {
+        try (OncRpcClient client = new OncRpcClient(InetAddress.getLoopbackAddress(), IpProtocolType.TCP, port)) {
+            RpcTransport transport = client.connect();
+            RpcCall call = new RpcCall(program, version, new RpcAuthTypeNone(), transport);
+            call.call(procedure, XdrVoid.XDR_VOID, XdrVoid.XDR_VOID);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
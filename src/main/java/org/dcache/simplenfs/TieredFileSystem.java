@@ -0,0 +1,675 @@
+package org.dcache.simplenfs;
+
+import org.cliffc.high_scale_lib.NonBlockingHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.dcache.nfs.status.NoEntException;
+import org.dcache.nfs.v4.NfsIdMapping;
+import org.dcache.nfs.v4.xdr.nfsace4;
+import org.dcache.nfs.vfs.AclCheckable;
+import org.dcache.nfs.vfs.DirectoryStream;
+import org.dcache.nfs.vfs.FsStat;
+import org.dcache.nfs.vfs.Inode;
+import org.dcache.nfs.vfs.Stat;
+import org.dcache.nfs.vfs.Stat.Type;
+import org.dcache.nfs.vfs.VirtualFileSystem;
+
+import javax.security.auth.Subject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A {@link VirtualFileSystem} which keeps the namespace and all data in the wrapped
+ * (capacity) file system and serves reads of frequently accessed files from copies
+ * in a directory on a fast device.
+ *
+ * The access rate of each file is sampled by a background mover, which promotes hot
+ * files into the fast tier and evicts them once they cool down or the fast tier is over
+ * its capacity. Writes go through to the capacity tier before they are applied to the
+ * fast copy, thus the capacity tier is always up to date: evicting a file only deletes
+ * its fast copy, and a crash loses nothing. File handles are provided by the wrapped
+ * file system and never change.
+ *
+ * The fast tier is a read cache: reads of hot files run at the speed of the fast device,
+ * writes always run at the speed of the capacity device.
+ *
+ * The fast tier directory must not be used for anything else, any files left there
+ * by a previous run are stale copies and deleted on startup.
+ */
+public class TieredFileSystem implements VirtualFileSystem, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TieredFileSystem.class);
+
+    /**
+     * Block size used to copy data into the fast tier.
+     */
+    private static final int COPY_BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * Tiering state of a single file.
+     */
+    private static class TierEntry {
+
+        /**
+         * Data access is done under the read lock, promotion and eviction under the write lock.
+         */
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        /**
+         * Number of reads and writes since last mover run.
+         */
+        final AtomicInteger hits = new AtomicInteger();
+
+        /**
+         * Number of requests using this entry, -1 once the entry is discarded by the mover.
+         */
+        final AtomicInteger users = new AtomicInteger();
+
+        /**
+         * Number of server-side copies writing into the file, which must not be promoted meanwhile.
+         */
+        final AtomicInteger pins = new AtomicInteger();
+
+        /**
+         * Incremented after every change of the data or the links of the file, used by the
+         * mover to detect changes while it copies the file without holding the lock.
+         */
+        final AtomicLong version = new AtomicLong();
+
+        /**
+         * Exponentially decaying access rate, updated by the mover only.
+         */
+        double temperature;
+
+        /**
+         * Location of the data in the fast tier or null, if file is not promoted.
+         */
+        volatile Path fastPath;
+
+        /**
+         * Set under the write lock when the file is removed from the namespace.
+         */
+        boolean removed;
+
+        boolean retain() {
+            while (true) {
+                int n = users.get();
+                if (n < 0) {
+                    return false;
+                }
+                if (users.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            users.decrementAndGet();
+        }
+
+        /**
+         * @return true if nobody uses the entry, which can't be retained anymore afterwards
+         */
+        boolean discard() {
+            return users.compareAndSet(0, -1);
+        }
+    }
+
+    private final VirtualFileSystem inner;
+    private final Path fastRoot;
+    private final long fastCapacity;
+    private final double promoteThreshold;
+    private final double demoteThreshold;
+    private final NonBlockingHashMap<ByteBuffer, TierEntry> entries = new NonBlockingHashMap<>();
+    private final ScheduledExecutorService mover;
+
+    /**
+     * @param inner capacity tier which provides the namespace
+     * @param fastRoot directory on the fast device, used for nothing else
+     * @param fastCapacity max number of bytes to keep in the fast tier
+     * @param promoteThreshold access rate (reads and writes per mover interval) to promote a file
+     * @param demoteThreshold access rate below which a promoted file is evicted
+     * @param interval mover interval
+     * @param unit unit of the mover interval
+     */
+    public TieredFileSystem(VirtualFileSystem inner, Path fastRoot, long fastCapacity,
+            double promoteThreshold, double demoteThreshold, long interval, TimeUnit unit) throws IOException {
+        this.inner = inner;
+        this.fastRoot = fastRoot;
+        this.fastCapacity = fastCapacity;
+        this.promoteThreshold = promoteThreshold;
+        this.demoteThreshold = demoteThreshold;
+
+        Files.createDirectories(fastRoot);
+        int stale = 0;
+        try (java.nio.file.DirectoryStream<Path> ds = Files.newDirectoryStream(fastRoot)) {
+            for (Path p : ds) {
+                if (Files.isRegularFile(p)) {
+                    Files.delete(p);
+                    stale++;
+                }
+            }
+        }
+        if (stale > 0) {
+            LOG.info("Deleted {} stale files from fast tier {}", stale, fastRoot);
+        }
+
+        mover = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "tier-mover");
+            t.setDaemon(true);
+            return t;
+        });
+        mover.scheduleWithFixedDelay(this::moveData, interval, interval, unit);
+    }
+
+    public TieredFileSystem(VirtualFileSystem inner, Path fastRoot, long fastCapacity) throws IOException {
+        this(inner, fastRoot, fastCapacity, 8.0, 1.0, 10, TimeUnit.SECONDS);
+    }
+
+    private static ByteBuffer keyOf(Inode inode) {
+        return ByteBuffer.wrap(inode.getFileId());
+    }
+
+    /**
+     * Get the entry of a file, creating it if needed. The entry must be released after use.
+     */
+    private TierEntry acquire(Inode inode) {
+        ByteBuffer key = keyOf(inode);
+        while (true) {
+            TierEntry entry = entries.get(key);
+            if (entry == null) {
+                entry = new TierEntry();
+                TierEntry otherEntry = entries.putIfAbsent(key, entry);
+                if (otherEntry != null) {
+                    entry = otherEntry;
+                }
+            }
+            if (entry.retain()) {
+                return entry;
+            }
+            // discarded by the mover, make sure it is gone and try again
+            entries.remove(key, entry);
+        }
+    }
+
+    private Path fastPathOf(ByteBuffer key) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = key.position(); i < key.limit(); i++) {
+            sb.append(String.format("%02x", key.get(i)));
+        }
+        return fastRoot.resolve(sb.toString());
+    }
+
+    /**
+     * @return true if the data of the file is currently served from the fast tier
+     */
+    boolean isPromoted(Inode inode) {
+        TierEntry entry = entries.get(keyOf(inode));
+        return entry != null && entry.fastPath != null;
+    }
+
+    /**
+     * Periodic mover task. Updates the access rate of all known files and moves data between tiers.
+     */
+    void moveData() {
+        List<Map.Entry<ByteBuffer, TierEntry>> candidates = new ArrayList<>();
+        List<TierEntry> promoted = new ArrayList<>();
+        long used = 0;
+        for (Map.Entry<ByteBuffer, TierEntry> e : entries.entrySet()) {
+            TierEntry entry = e.getValue();
+            entry.temperature = entry.temperature / 2 + entry.hits.getAndSet(0);
+            try {
+                Path fastPath = entry.fastPath;
+                if (fastPath != null) {
+                    if (entry.temperature < demoteThreshold) {
+                        evict(entry);
+                    } else {
+                        // promoted files grow with writes
+                        used += Files.size(fastPath);
+                        promoted.add(entry);
+                    }
+                } else if (entry.temperature >= promoteThreshold) {
+                    candidates.add(e);
+                } else if (entry.temperature < 0.01 && entry.discard()) {
+                    // forget about cold files, nobody can use the entry anymore
+                    entries.remove(e.getKey(), entry);
+                }
+            } catch (IOException | RuntimeException ex) {
+                LOG.warn("Failed to evict {}: {}", fastPathOf(e.getKey()).getFileName(), ex.getMessage());
+            }
+        }
+
+        // coldest first, until the fast tier is back within its capacity
+        promoted.sort(Comparator.comparingDouble(entry -> entry.temperature));
+        for (TierEntry entry : promoted) {
+            if (used <= fastCapacity) {
+                break;
+            }
+            try {
+                Path fastPath = entry.fastPath;
+                if (fastPath != null) {
+                    long size = Files.size(fastPath);
+                    evict(entry);
+                    used -= size;
+                }
+            } catch (IOException | RuntimeException ex) {
+                LOG.warn("Failed to evict: {}", ex.getMessage());
+            }
+        }
+
+        // hottest first
+        candidates.sort(Comparator.comparingDouble((Map.Entry<ByteBuffer, TierEntry> e) -> e.getValue().temperature).reversed());
+        for (Map.Entry<ByteBuffer, TierEntry> e : candidates) {
+            try {
+                long size = inner.getattr(Inode.forFile(e.getKey().array())).getSize();
+                if (used + size <= fastCapacity && promote(e.getKey(), e.getValue())) {
+                    used += size;
+                }
+            } catch (IOException | RuntimeException ex) {
+                LOG.warn("Failed to promote {}: {}", fastPathOf(e.getKey()).getFileName(), ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Copy the file into the fast tier. Clients keep reading and writing the capacity tier
+     * while the data is copied, the lock is only taken to switch to the fast copy, which is
+     * discarded if the file was changed meanwhile.
+     */
+    private boolean promote(ByteBuffer key, TierEntry entry) throws IOException {
+        Inode inode = Inode.forFile(key.array());
+        long version = entry.version.get();
+        if (entry.removed || entry.fastPath != null || entry.pins.get() > 0) {
+            return false;
+        }
+        Stat stat = inner.getattr(inode);
+        if (stat.type() != Type.REGULAR || stat.getNlink() > 1) {
+            // only single linked regular files, hard links would share the data
+            return false;
+        }
+        Path fastPath = fastPathOf(key);
+        Path copyPath = fastPath.resolveSibling(fastPath.getFileName() + ".copy");
+        byte[] block = new byte[COPY_BLOCK_SIZE];
+        try (FileChannel out = FileChannel.open(copyPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long offset = 0;
+            int n;
+            while ((n = inner.read(inode, block, offset, block.length)) > 0) {
+                out.write(ByteBuffer.wrap(block, 0, n), offset);
+                offset += n;
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(copyPath);
+            throw e;
+        }
+
+        entry.lock.writeLock().lock();
+        try {
+            if (entry.removed || entry.fastPath != null || entry.pins.get() > 0 || entry.version.get() != version) {
+                Files.delete(copyPath);
+                LOG.debug("Changed while promoted, discarded copy of {}", fastPath.getFileName());
+                return false;
+            }
+            Files.move(copyPath, fastPath, StandardCopyOption.ATOMIC_MOVE);
+            entry.fastPath = fastPath;
+        } finally {
+            entry.lock.writeLock().unlock();
+        }
+        LOG.debug("Promoted {} to fast tier", fastPath.getFileName());
+        return true;
+    }
+
+    /**
+     * Drop a fast copy which failed to follow a change of the capacity tier or can't be read.
+     * Must be called with the entry locked for data access, thus the file is deleted before
+     * a new copy can be promoted to the same location.
+     */
+    private void invalidate(TierEntry entry, Path fastPath, IOException cause) {
+        synchronized (entry) {
+            if (entry.fastPath == fastPath) {
+                entry.fastPath = null;
+            }
+        }
+        LOG.warn("Dropped {} from fast tier: {}", fastPath.getFileName(), cause.getMessage());
+        try {
+            Files.deleteIfExists(fastPath);
+        } catch (IOException e) {
+            LOG.warn("Failed to delete {}: {}", fastPath, e.getMessage());
+        }
+    }
+
+    /**
+     * Delete the fast copy of a file. The capacity tier is up to date, thus no data is moved.
+     */
+    private void evict(TierEntry entry) throws IOException {
+        entry.lock.writeLock().lock();
+        try {
+            Path fastPath = entry.fastPath;
+            if (fastPath != null) {
+                entry.fastPath = null;
+                Files.deleteIfExists(fastPath);
+                LOG.debug("Evicted {} from fast tier", fastPath.getFileName());
+            }
+        } finally {
+            entry.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forget about a file which was removed from the namespace.
+     */
+    private void drop(Inode inode) throws IOException {
+        TierEntry entry = entries.remove(keyOf(inode));
+        if (entry != null) {
+            entry.lock.writeLock().lock();
+            try {
+                entry.removed = true;
+            } finally {
+                entry.lock.writeLock().unlock();
+            }
+            evict(entry);
+        }
+    }
+
+    @Override
+    public int access(Subject subject, Inode inode, int mode) throws IOException {
+        return inner.access(subject, inode, mode);
+    }
+
+    @Override
+    public Inode create(Inode parent, Type type, String path, Subject subject, int mode) throws IOException {
+        return inner.create(parent, type, path, subject, mode);
+    }
+
+    @Override
+    public FsStat getFsStat() throws IOException {
+        return inner.getFsStat();
+    }
+
+    @Override
+    public Inode getRootInode() throws IOException {
+        return inner.getRootInode();
+    }
+
+    @Override
+    public Inode lookup(Inode parent, String path) throws IOException {
+        return inner.lookup(parent, path);
+    }
+
+    @Override
+    public Inode link(Inode parent, Inode existing, String target, Subject subject) throws IOException {
+        TierEntry entry = acquire(existing);
+        try {
+            // hard links share the data, a fast copy would miss writes through the other link
+            evict(entry);
+            return inner.link(parent, existing, target, subject);
+        } finally {
+            entry.version.incrementAndGet();
+            entry.release();
+        }
+    }
+
+    @Override
+    public DirectoryStream list(Inode inode, byte[] verifier, long cookie) throws IOException {
+        return inner.list(inode, verifier, cookie);
+    }
+
+    @Override
+    public byte[] directoryVerifier(Inode inode) throws IOException {
+        return inner.directoryVerifier(inode);
+    }
+
+    @Override
+    public Inode mkdir(Inode parent, String path, Subject subject, int mode) throws IOException {
+        return inner.mkdir(parent, path, subject, mode);
+    }
+
+    @Override
+    public boolean move(Inode src, String oldName, Inode dest, String newName) throws IOException {
+        Inode moved = inner.lookup(src, oldName);
+        Inode replaced;
+        try {
+            replaced = inner.lookup(dest, newName);
+        } catch (NoEntException e) {
+            replaced = null;
+        }
+        boolean changed = inner.move(src, oldName, dest, newName);
+        if (replaced != null && !Arrays.equals(replaced.getFileId(), moved.getFileId())) {
+            drop(replaced);
+        }
+        return changed;
+    }
+
+    @Override
+    public Inode parentOf(Inode inode) throws IOException {
+        return inner.parentOf(inode);
+    }
+
+    @Override
+    public int read(Inode inode, byte[] data, long offset, int count) throws IOException {
+        TierEntry entry = acquire(inode);
+        try {
+            entry.hits.incrementAndGet();
+            entry.lock.readLock().lock();
+            try {
+                Path fastPath = entry.fastPath;
+                if (fastPath == null) {
+                    return inner.read(inode, data, offset, count);
+                }
+                ByteBuffer destBuffer = ByteBuffer.wrap(data, 0, count);
+                try (FileChannel channel = FileChannel.open(fastPath, StandardOpenOption.READ)) {
+                    return channel.read(destBuffer, offset);
+                } catch (IOException e) {
+                    invalidate(entry, fastPath, e);
+                    return inner.read(inode, data, offset, count);
+                }
+            } finally {
+                entry.lock.readLock().unlock();
+            }
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public String readlink(Inode inode) throws IOException {
+        return inner.readlink(inode);
+    }
+
+    @Override
+    public void remove(Inode parent, String path) throws IOException {
+        Inode inode = inner.lookup(parent, path);
+        inner.remove(parent, path);
+        drop(inode);
+    }
+
+    @Override
+    public Inode symlink(Inode parent, String linkName, String targetName, Subject subject, int mode) throws IOException {
+        return inner.symlink(parent, linkName, targetName, subject, mode);
+    }
+
+    @Override
+    public WriteResult write(Inode inode, byte[] data, long offset, int count, StabilityLevel stabilityLevel) throws IOException {
+        TierEntry entry = acquire(inode);
+        try {
+            entry.hits.incrementAndGet();
+            entry.lock.readLock().lock();
+            IOException failure;
+            try {
+                if (entry.fastPath == null) {
+                    return inner.write(inode, data, offset, count, stabilityLevel);
+                }
+                Path fastPath;
+                // both copies must see concurrent writes in the same order
+                synchronized (entry) {
+                    fastPath = entry.fastPath;
+                    WriteResult result = inner.write(inode, data, offset, count, stabilityLevel);
+                    if (fastPath == null) {
+                        // dropped by a failed write meanwhile
+                        return result;
+                    }
+                    ByteBuffer srcBuffer = ByteBuffer.wrap(data, 0, result.getBytesWritten());
+                    try (FileChannel channel = FileChannel.open(fastPath, StandardOpenOption.WRITE)) {
+                        channel.write(srcBuffer, offset);
+                        return result;
+                    } catch (IOException e) {
+                        // no further request may see the stale copy
+                        entry.fastPath = null;
+                        failure = e;
+                    }
+                }
+                invalidate(entry, fastPath, failure);
+                throw failure;
+            } finally {
+                entry.version.incrementAndGet();
+                entry.lock.readLock().unlock();
+            }
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public void commit(Inode inode, long offset, int count) throws IOException {
+        inner.commit(inode, offset, count);
+    }
+
+    @Override
+    public CompletableFuture<Long> copyFileRange(Inode src, long srcPos, Inode dst, long dstPos, long len) {
+        // the source is read from the capacity tier, which is always up to date. The destination
+        // is written there as well, thus must not have a fast copy until the copy is complete.
+        TierEntry entry = acquire(dst);
+        entry.pins.incrementAndGet();
+        try {
+            evict(entry);
+        } catch (IOException e) {
+            entry.pins.decrementAndGet();
+            entry.release();
+            return CompletableFuture.failedFuture(e);
+        }
+        return inner.copyFileRange(src, srcPos, dst, dstPos, len)
+                .whenComplete((copied, t) -> {
+                    entry.version.incrementAndGet();
+                    entry.pins.decrementAndGet();
+                    entry.release();
+                });
+    }
+
+    @Override
+    public Stat getattr(Inode inode) throws IOException {
+        return inner.getattr(inode);
+    }
+
+    @Override
+    public void setattr(Inode inode, Stat stat) throws IOException {
+        TierEntry entry = acquire(inode);
+        try {
+            entry.lock.readLock().lock();
+            IOException failure;
+            try {
+                if (entry.fastPath == null || !stat.isDefined(Stat.StatAttribute.SIZE)) {
+                    inner.setattr(inode, stat);
+                    return;
+                }
+                Path fastPath;
+                synchronized (entry) {
+                    fastPath = entry.fastPath;
+                    inner.setattr(inode, stat);
+                    if (fastPath == null) {
+                        return;
+                    }
+                    try (FileChannel channel = FileChannel.open(fastPath, StandardOpenOption.WRITE)) {
+                        if (stat.getSize() < channel.size()) {
+                            channel.truncate(stat.getSize());
+                        } else if (stat.getSize() > channel.size()) {
+                            channel.write(ByteBuffer.allocate(1), stat.getSize() - 1);
+                        }
+                        return;
+                    } catch (IOException e) {
+                        entry.fastPath = null;
+                        failure = e;
+                    }
+                }
+                invalidate(entry, fastPath, failure);
+                throw failure;
+            } finally {
+                entry.version.incrementAndGet();
+                entry.lock.readLock().unlock();
+            }
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public nfsace4[] getAcl(Inode inode) throws IOException {
+        return inner.getAcl(inode);
+    }
+
+    @Override
+    public void setAcl(Inode inode, nfsace4[] acl) throws IOException {
+        inner.setAcl(inode, acl);
+    }
+
+    @Override
+    public boolean hasIOLayout(Inode inode) throws IOException {
+        return inner.hasIOLayout(inode);
+    }
+
+    @Override
+    public AclCheckable getAclCheckable() {
+        return inner.getAclCheckable();
+    }
+
+    @Override
+    public NfsIdMapping getIdMapper() {
+        return inner.getIdMapper();
+    }
+
+    @Override
+    public boolean getCaseInsensitive() {
+        return inner.getCaseInsensitive();
+    }
+
+    @Override
+    public boolean getCasePreserving() {
+        return inner.getCasePreserving();
+    }
+
+    /**
+     * Stops the mover and deletes all fast copies.
+     */
+    @Override
+    public void close() throws IOException {
+        mover.shutdown();
+        try {
+            mover.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (TierEntry entry : entries.values()) {
+            evict(entry);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.dcache.simplenfs;
+
+/**
+ * Operations recorded by {@link RecordingFileSystem} and replayed by {@link TraceReplay}.
+ *
+ * A trace file starts with {@link #MAGIC}, {@link #VERSION}, the file id of the root inode and
+ * a snapshot of the namespace at the start of the recording. Each entry of the snapshot is:
+ * <pre>
+ *   boolean true, false marks the end of the snapshot
+ *   fileid  parent directory
+ *   UTF     name
+ *   UTF     {@link org.dcache.nfs.vfs.Stat.Type} name
+ *   int     mode, uid and gid
+ *   long    size
+ *   fileid  the entry itself
+ *   UTF     link target, for symbolic links only
+ * </pre>
+ * Directories come before their content. The snapshot is followed by one record per operation:
+ * <pre>
+ *   byte    operation code
+ *   long    start time in nanoseconds, relative to the start of the recording
+ *   long    duration in nanoseconds
+ *   boolean true if the operation succeeded
+ *   ...     operation specific arguments, see {@link RecordingFileSystem}
+ * </pre>
+ * File ids are written as a length followed by the bytes, with length -1 for a missing inode.
+ */
+public enum TraceOp {
+
+    ACCESS(1),
+    CREATE(2),
+    LOOKUP(3),
+    LINK(4),
+    LIST(5),
+    MKDIR(6),
+    MOVE(7),
+    PARENTOF(8),
+    READ(9),
+    READLINK(10),
+    REMOVE(11),
+    SYMLINK(12),
+    WRITE(13),
+    COMMIT(14),
+    GETATTR(15),
+    SETATTR(16),
+    COPY(17);
+
+    public static final int MAGIC = 0x4E465354; // "NFST"
+    public static final short VERSION = 2;
+
+    private static final TraceOp[] BY_CODE = new TraceOp[values().length + 1];
+    static {
+        for (TraceOp op : values()) {
+            BY_CODE[op.code] = op;
+        }
+    }
+
+    private final int code;
+
+    TraceOp(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public static TraceOp valueOf(int code) {
+        if (code <= 0 || code >= BY_CODE.length) {
+            throw new IllegalArgumentException("unknown operation code: " + code);
+        }
+        return BY_CODE[code];
+    }
+}
@@ -0,0 +1,459 @@
+package org.dcache.simplenfs;
+
+import com.sun.security.auth.UnixNumericGroupPrincipal;
+import com.sun.security.auth.UnixNumericUserPrincipal;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import org.dcache.nfs.vfs.DirectoryStream;
+import org.dcache.nfs.vfs.Inode;
+import org.dcache.nfs.vfs.Stat;
+import org.dcache.nfs.vfs.VirtualFileSystem;
+import org.dcache.nfs.vfs.VirtualFileSystem.StabilityLevel;
+
+import javax.security.auth.Subject;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a trace written by {@link RecordingFileSystem} against a fresh {@link LocalFileSystem}
+ * and reports throughput and per-operation latency.
+ *
+ * The namespace snapshot of the trace is created first, regular files as sparse files of the
+ * recorded size. Then operations are issued one by one, from a single thread, in the order they
+ * completed during the recording. Thus the replay reproduces the operation mix and timing, but not
+ * the concurrency of the recorded clients, and with {@code -fast} not the think time either.
+ * Operations on inodes which are not known to the replay are skipped.
+ */
+public class TraceReplay {
+
+    @Option(name = "-trace", usage = "trace file to replay", metaVar = "<file>", required = true)
+    private Path traceFile;
+    @Option(name = "-root", usage = "empty directory to replay into (default: temporary directory)", metaVar = "<path>")
+    private Path root;
+    @Option(name = "-fast", usage = "replay as fast as possible instead of at recorded speed")
+    private boolean fast;
+
+    /**
+     * Latencies in nanoseconds of one operation type.
+     */
+    private static class Latencies {
+        private long[] values = new long[1024];
+        private int count;
+        private int errors;
+
+        void add(long value) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = value;
+        }
+
+        long percentile(long[] sorted, double p) {
+            return sorted[(int) Math.min(count - 1, Math.ceil(p * count) - 1)];
+        }
+    }
+
+    private final Map<ByteBuffer, Inode> inodes = new HashMap<>();
+    private final Map<TraceOp, Latencies> latencies = new EnumMap<>(TraceOp.class);
+    private byte[] buffer = new byte[0];
+    private long skipped;
+    private long namespaceFailed;
+
+    public static void main(String[] args) throws Exception {
+        new TraceReplay().run(args);
+    }
+
+    public void run(String[] args) throws IOException {
+
+        CmdLineParser parser = new CmdLineParser(this);
+
+        try {
+            parser.parseArgument(args);
+        } catch (CmdLineException e) {
+            System.err.println();
+            System.err.println(e.getMessage());
+            System.err.println("Usage:");
+            System.err.println("    TraceReplay [options...]");
+            System.err.println();
+            parser.printUsage(System.err);
+            System.exit(1);
+        }
+
+        if (root == null) {
+            root = Files.createTempDirectory(null);
+        }
+
+        VirtualFileSystem vfs = new LocalFileSystem(root, Collections.emptyList());
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(traceFile)))) {
+            if (in.readInt() != TraceOp.MAGIC) {
+                throw new IOException("Not a trace file: " + traceFile);
+            }
+            short version = in.readShort();
+            if (version != TraceOp.VERSION) {
+                throw new IOException("Unsupported trace version: " + version);
+            }
+            inodes.put(readFileId(in), vfs.getRootInode());
+            createNamespace(vfs, in);
+
+            long replayStart = System.nanoTime();
+            while (true) {
+                int code;
+                try {
+                    code = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                TraceOp op = TraceOp.valueOf(code);
+                long recordedStart = in.readLong();
+                in.readLong(); // recorded duration
+                in.readBoolean(); // recorded status
+
+                if (!fast) {
+                    long delay = recordedStart - (System.nanoTime() - replayStart);
+                    if (delay > 0) {
+                        TimeUnit.NANOSECONDS.sleep(delay);
+                    }
+                }
+                replay(vfs, op, in);
+            }
+            report(System.nanoTime() - replayStart);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void createNamespace(VirtualFileSystem vfs, DataInputStream in) throws IOException {
+        long created = 0;
+        while (in.readBoolean()) {
+            Inode parent = readInode(in);
+            String name = in.readUTF();
+            Stat.Type type = Stat.Type.valueOf(in.readUTF());
+            int mode = in.readInt() & 07777;
+            Subject subject = toSubject(in.readInt(), in.readInt());
+            long size = in.readLong();
+            ByteBuffer fileId = readFileId(in);
+            String target = type == Stat.Type.SYMLINK ? in.readUTF() : null;
+            if (parent == null) {
+                namespaceFailed++;
+                continue;
+            }
+            try {
+                switch (type) {
+                    case DIRECTORY:
+                        bind(fileId, vfs.mkdir(parent, name, subject, mode));
+                        break;
+                    case REGULAR: {
+                        Inode inode = bind(fileId, vfs.create(parent, type, name, subject, mode));
+                        if (size > 0) {
+                            Stat stat = new Stat();
+                            stat.setSize(size);
+                            vfs.setattr(inode, stat);
+                        }
+                        break;
+                    }
+                    case SYMLINK:
+                        bind(fileId, vfs.symlink(parent, name, target, subject, mode));
+                        break;
+                    default:
+                        namespaceFailed++;
+                        continue;
+                }
+                created++;
+            } catch (IOException | RuntimeException e) {
+                namespaceFailed++;
+            }
+        }
+        System.out.printf("namespace: %d entries created, %d failed%n", created, namespaceFailed);
+    }
+
+    private void replay(VirtualFileSystem vfs, TraceOp op, DataInputStream in) throws IOException {
+        // read all arguments first, the stream must stay aligned even if the operation is skipped
+        switch (op) {
+            case ACCESS: {
+                Subject subject = readSubject(in);
+                Inode inode = readInode(in);
+                int mode = in.readInt();
+                execute(op, inode != null, () -> vfs.access(subject, inode, mode));
+                break;
+            }
+            case CREATE: {
+                Subject subject = readSubject(in);
+                Inode parent = readInode(in);
+                Stat.Type type = Stat.Type.valueOf(in.readUTF());
+                String name = in.readUTF();
+                int mode = in.readInt();
+                ByteBuffer result = readFileId(in);
+                execute(op, parent != null, () -> bind(result, vfs.create(parent, type, name, subject, mode)));
+                break;
+            }
+            case LOOKUP: {
+                Inode parent = readInode(in);
+                String name = in.readUTF();
+                ByteBuffer result = readFileId(in);
+                execute(op, parent != null, () -> bind(result, vfs.lookup(parent, name)));
+                break;
+            }
+            case LINK: {
+                Subject subject = readSubject(in);
+                Inode parent = readInode(in);
+                Inode inode = readInode(in);
+                String name = in.readUTF();
+                ByteBuffer result = readFileId(in);
+                execute(op, parent != null && inode != null, () -> bind(result, vfs.link(parent, inode, name, subject)));
+                break;
+            }
+            case LIST: {
+                Inode inode = readInode(in);
+                long cookie = in.readLong();
+                execute(op, inode != null, () -> vfs.list(inode, DirectoryStream.ZERO_VERIFIER, cookie));
+                break;
+            }
+            case MKDIR: {
+                Subject subject = readSubject(in);
+                Inode parent = readInode(in);
+                String name = in.readUTF();
+                int mode = in.readInt();
+                ByteBuffer result = readFileId(in);
+                execute(op, parent != null, () -> bind(result, vfs.mkdir(parent, name, subject, mode)));
+                break;
+            }
+            case MOVE: {
+                Inode parent = readInode(in);
+                String name = in.readUTF();
+                Inode dest = readInode(in);
+                String newName = in.readUTF();
+                execute(op, parent != null && dest != null, () -> vfs.move(parent, name, dest, newName));
+                break;
+            }
+            case PARENTOF: {
+                Inode inode = readInode(in);
+                ByteBuffer result = readFileId(in);
+                execute(op, inode != null, () -> bind(result, vfs.parentOf(inode)));
+                break;
+            }
+            case READ: {
+                Inode inode = readInode(in);
+                long offset = in.readLong();
+                int count = in.readInt();
+                byte[] readBuffer = buffer(count);
+                execute(op, inode != null, () -> vfs.read(inode, readBuffer, offset, count));
+                break;
+            }
+            case READLINK: {
+                Inode inode = readInode(in);
+                execute(op, inode != null, () -> vfs.readlink(inode));
+                break;
+            }
+            case REMOVE: {
+                Inode parent = readInode(in);
+                String name = in.readUTF();
+                execute(op, parent != null, () -> {
+                    vfs.remove(parent, name);
+                    return null;
+                });
+                break;
+            }
+            case SYMLINK: {
+                Subject subject = readSubject(in);
+                Inode parent = readInode(in);
+                String name = in.readUTF();
+                String target = in.readUTF();
+                int mode = in.readInt();
+                ByteBuffer result = readFileId(in);
+                execute(op, parent != null, () -> bind(result, vfs.symlink(parent, name, target, subject, mode)));
+                break;
+            }
+            case WRITE: {
+                Inode inode = readInode(in);
+                long offset = in.readLong();
+                int count = in.readInt();
+                StabilityLevel stabilityLevel = StabilityLevel.values()[in.readUnsignedByte()];
+                byte[] writeBuffer = buffer(count);
+                execute(op, inode != null, () -> vfs.write(inode, writeBuffer, offset, count, stabilityLevel));
+                break;
+            }
+            case COMMIT: {
+                Inode inode = readInode(in);
+                long offset = in.readLong();
+                int count = in.readInt();
+                execute(op, inode != null, () -> {
+                    vfs.commit(inode, offset, count);
+                    return null;
+                });
+                break;
+            }
+            case GETATTR: {
+                Inode inode = readInode(in);
+                execute(op, inode != null, () -> vfs.getattr(inode));
+                break;
+            }
+            case SETATTR: {
+                Inode inode = readInode(in);
+                long size = in.readLong();
+                int newMode = in.readInt();
+                Stat stat = new Stat();
+                if (size != -1) {
+                    stat.setSize(size);
+                }
+                if (newMode != -1) {
+                    stat.setMode(newMode);
+                }
+                execute(op, inode != null, () -> {
+                    vfs.setattr(inode, stat);
+                    return null;
+                });
+                break;
+            }
+            case COPY: {
+                Inode src = readInode(in);
+                long srcPos = in.readLong();
+                Inode dst = readInode(in);
+                long dstPos = in.readLong();
+                long len = in.readLong();
+                execute(op, src != null && dst != null, () -> {
+                    try {
+                        return vfs.copyFileRange(src, srcPos, dst, dstPos, len).get();
+                    } catch (ExecutionException e) {
+                        throw new IOException(e.getCause());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException(e);
+                    }
+                });
+                break;
+            }
+            default:
+                throw new IOException("Unexpected operation: " + op);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Call {
+        Object call() throws IOException;
+    }
+
+    private void execute(TraceOp op, boolean resolved, Call call) {
+        if (!resolved) {
+            skipped++;
+            return;
+        }
+        Latencies l = latencies.computeIfAbsent(op, k -> new Latencies());
+        long start = System.nanoTime();
+        try {
+            call.call();
+        } catch (IOException | RuntimeException e) {
+            l.errors++;
+        }
+        l.add(System.nanoTime() - start);
+    }
+
+    /**
+     * @return number of operations skipped, as they refer to inodes unknown to the replay
+     */
+    long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return number of replayed operations which failed
+     */
+    long getErrors() {
+        long errors = 0;
+        for (Latencies l : latencies.values()) {
+            errors += l.errors;
+        }
+        return errors;
+    }
+
+    /**
+     * @return number of namespace snapshot entries which could not be created
+     */
+    long getNamespaceFailed() {
+        return namespaceFailed;
+    }
+
+    private Inode bind(ByteBuffer recordedFileId, Inode inode) {
+        if (recordedFileId != null) {
+            inodes.put(recordedFileId, inode);
+        }
+        return inode;
+    }
+
+    private byte[] buffer(int size) {
+        if (buffer.length < size) {
+            buffer = new byte[size];
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer readFileId(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] fileId = new byte[len];
+        in.readFully(fileId);
+        return ByteBuffer.wrap(fileId);
+    }
+
+    private Inode readInode(DataInputStream in) throws IOException {
+        ByteBuffer fileId = readFileId(in);
+        return fileId == null ? null : inodes.get(fileId);
+    }
+
+    private static Subject readSubject(DataInputStream in) throws IOException {
+        return toSubject(in.readLong(), in.readLong());
+    }
+
+    private static Subject toSubject(long uid, long gid) {
+        Subject subject = new Subject();
+        if (uid != -1) {
+            subject.getPrincipals().add(new UnixNumericUserPrincipal(uid));
+        }
+        if (gid != -1) {
+            subject.getPrincipals().add(new UnixNumericGroupPrincipal(gid, true));
+        }
+        return subject;
+    }
+
+    private void report(long elapsed) {
+        long total = 0;
+        System.out.printf("%-10s %10s %8s %10s %10s %10s %10s%n",
+                "op", "count", "errors", "mean(us)", "p50(us)", "p99(us)", "max(us)");
+        for (Map.Entry<TraceOp, Latencies> e : latencies.entrySet()) {
+            Latencies l = e.getValue();
+            long[] sorted = Arrays.copyOf(l.values, l.count);
+            Arrays.sort(sorted);
+            long sum = 0;
+            for (long v : sorted) {
+                sum += v;
+            }
+            total += l.count;
+            System.out.printf("%-10s %10d %8d %10.1f %10.1f %10.1f %10.1f%n",
+                    e.getKey(), l.count, l.errors,
+                    sum / 1000.0 / l.count,
+                    l.percentile(sorted, 0.50) / 1000.0,
+                    l.percentile(sorted, 0.99) / 1000.0,
+                    sorted[l.count - 1] / 1000.0);
+        }
+        double seconds = elapsed / 1_000_000_000.0;
+        System.out.printf("%d operations in %.3f s, %.0f ops/s, %d skipped%n",
+                total, seconds, total / seconds, skipped);
+    }
+}
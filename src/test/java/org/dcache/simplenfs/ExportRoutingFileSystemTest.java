@@ -0,0 +1,216 @@
+package org.dcache.simplenfs;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.dcache.nfs.ExportFile;
+import org.dcache.nfs.status.AccessException;
+import org.dcache.nfs.status.NoEntException;
+import org.dcache.nfs.status.XDevException;
+import org.dcache.nfs.vfs.DirectoryEntry;
+import org.dcache.nfs.vfs.DirectoryStream;
+import org.dcache.nfs.vfs.FsStat;
+import org.dcache.nfs.vfs.Inode;
+
+import javax.security.auth.Subject;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ExportRoutingFileSystemTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = folder.getRoot().toPath();
+        Files.createDirectories(root.resolve("a/b"));
+        Files.createDirectories(root.resolve("c"));
+        Files.write(root.resolve("top"), new byte[1]);
+        Files.write(root.resolve("a/file"), new byte[1]);
+        Files.write(root.resolve("a/b/file"), new byte[1]);
+        Files.write(root.resolve("c/file"), new byte[1]);
+    }
+
+    private ExportRoutingFileSystem newFileSystem(String... exports) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String export : exports) {
+            sb.append(export).append(" *(rw,no_root_squash)\n");
+        }
+        ExportFile exportFile = new ExportFile(new StringReader(sb.toString()));
+        return new ExportRoutingFileSystem(root, exportFile.exports().collect(Collectors.toList()));
+    }
+
+    private static void assertSameInode(Inode expected, Inode actual) {
+        assertArrayEquals(expected.getFileId(), actual.getFileId());
+    }
+
+    @Test
+    public void shouldCrossIntoNestedExports() throws IOException {
+        ExportRoutingFileSystem fs = newFileSystem("/a", "/a/b", "/c");
+        Inode a = fs.lookup(fs.getRootInode(), "a");
+        Inode b = fs.lookup(a, "b");
+
+        Inode file = fs.lookup(b, "file");
+        assertEquals(1, fs.getattr(file).getSize());
+        assertSameInode(b, fs.lookup(b, "."));
+    }
+
+    @Test
+    public void shouldCrossBackOnDotDot() throws IOException {
+        ExportRoutingFileSystem fs = newFileSystem("/a", "/a/b", "/c");
+        Inode top = fs.getRootInode();
+        Inode a = fs.lookup(top, "a");
+        Inode b = fs.lookup(a, "b");
+
+        assertSameInode(a, fs.lookup(b, ".."));
+        assertSameInode(a, fs.parentOf(b));
+        assertSameInode(top, fs.lookup(a, ".."));
+        assertSameInode(top, fs.parentOf(a));
+        assertSameInode(b, fs.parentOf(fs.lookup(b, "file")));
+    }
+
+    @Test(expected = NoEntException.class)
+    public void shouldHaveNoParentOfTopRoot() throws IOException {
+        ExportRoutingFileSystem fs = newFileSystem("/a");
+        fs.parentOf(fs.getRootInode());
+    }
+
+    @Test
+    public void shouldListRootOfNestedExportAtMountPoint() throws IOException {
+        ExportRoutingFileSystem fs = newFileSystem("/a", "/a/b", "/c");
+        Inode a = fs.lookup(fs.getRootInode(), "a");
+        Inode b = fs.lookup(a, "b");
+
+        DirectoryStream stream = fs.list(a, DirectoryStream.ZERO_VERIFIER, 0);
+        Set<String> names = new HashSet<>();
+        for (DirectoryEntry entry : stream) {
+            names.add(entry.getName());
+            if (entry.getName().equals("b")) {
+                assertSameInode(b, entry.getInode());
+                assertEquals(fs.getattr(b).getIno(), entry.getStat().getIno());
+            }
+        }
+        assertTrue(names.contains("b"));
+        assertTrue(names.contains("file"));
+    }
+
+    @Test(expected = XDevException.class)
+    public void shouldNotLinkAcrossExports() throws IOException {
+        ExportRoutingFileSystem fs = newFileSystem("/a", "/a/b", "/c");
+        Inode a = fs.lookup(fs.getRootInode(), "a");
+        Inode b = fs.lookup(a, "b");
+        fs.link(b, fs.lookup(a, "file"), "link", new Subject());
+    }
+
+    @Test(expected = XDevException.class)
+    public void shouldNotMoveAcrossExports() throws IOException {
+        ExportRoutingFileSystem fs = newFileSystem("/a", "/a/b", "/c");
+        Inode a = fs.lookup(fs.getRootInode(), "a");
+        Inode c = fs.lookup(fs.getRootInode(), "c");
+        fs.move(a, "file", c, "moved");
+    }
+
+    @Test
+    public void shouldNotCopyAcrossExports() throws Exception {
+        ExportRoutingFileSystem fs = newFileSystem("/a", "/a/b", "/c");
+        Inode a = fs.lookup(fs.getRootInode(), "a");
+        Inode c = fs.lookup(fs.getRootInode(), "c");
+        try {
+            fs.copyFileRange(fs.lookup(a, "file"), 0, fs.lookup(c, "file"), 0, 0).get();
+            fail("copy across exports");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof XDevException);
+        }
+    }
+
+    @Test
+    public void shouldHaveUniqueInodeNumbers() throws IOException {
+        ExportRoutingFileSystem fs = newFileSystem("/a", "/a/b", "/c");
+        Inode top = fs.getRootInode();
+        Inode a = fs.lookup(top, "a");
+        Inode b = fs.lookup(a, "b");
+        Inode c = fs.lookup(top, "c");
+        Inode[] inodes = {top, fs.lookup(top, "top"), a, fs.lookup(a, "file"), b, fs.lookup(b, "file"), c, fs.lookup(c, "file")};
+
+        Set<Long> inos = new HashSet<>();
+        for (Inode inode : inodes) {
+            inos.add(fs.getattr(inode).getIno());
+        }
+        assertEquals(inodes.length, inos.size());
+    }
+
+    @Test
+    public void shouldServeDirectoriesLeadingToExports() throws IOException {
+        ExportRoutingFileSystem fs = newFileSystem("/a/b");
+        Inode top = fs.getRootInode();
+        Inode a = fs.lookup(top, "a");
+        Inode b = fs.lookup(a, "b");
+
+        assertEquals(1, fs.getattr(fs.lookup(top, "top")).getSize());
+        assertEquals(1, fs.getattr(fs.lookup(b, "file")).getSize());
+        assertSameInode(a, fs.lookup(b, ".."));
+    }
+
+    @Test
+    public void shouldCountFilesOfAllExports() throws IOException {
+        ExportRoutingFileSystem fs = newFileSystem("/a", "/a/b", "/c");
+        FsStat fsStat = fs.getFsStat();
+        // root, top, a, a/file, a/b, a/b/file, c, c/file
+        assertEquals(8, fsStat.getUsedFiles());
+    }
+
+    @Test(expected = XDevException.class)
+    public void shouldNotMoveMountPoint() throws IOException {
+        ExportRoutingFileSystem fs = newFileSystem("/a", "/c");
+        fs.move(fs.getRootInode(), "c", fs.getRootInode(), "moved");
+    }
+
+    @Test(expected = XDevException.class)
+    public void shouldNotMoveDirectoryAboveMountPoint() throws IOException {
+        ExportRoutingFileSystem fs = newFileSystem("/a/b");
+        fs.move(fs.getRootInode(), "a", fs.getRootInode(), "moved");
+    }
+
+    @Test(expected = XDevException.class)
+    public void shouldNotReplaceMountPoint() throws IOException {
+        Files.createDirectories(root.resolve("empty"));
+        ExportRoutingFileSystem fs = newFileSystem("/d");
+        fs.move(fs.getRootInode(), "empty", fs.getRootInode(), "d");
+    }
+
+    @Test(expected = AccessException.class)
+    public void shouldNotRemoveMountPoint() throws IOException {
+        ExportRoutingFileSystem fs = newFileSystem("/d");
+        fs.remove(fs.getRootInode(), "d");
+    }
+
+    @Test
+    public void shouldMoveNextToMountPoint() throws IOException {
+        ExportRoutingFileSystem fs = newFileSystem("/a/b", "/c");
+        Inode top = fs.getRootInode();
+        fs.move(top, "top", top, "moved");
+        Inode a = fs.lookup(top, "a");
+        fs.move(a, "file", a, "moved");
+
+        assertEquals(1, fs.getattr(fs.lookup(top, "moved")).getSize());
+        assertEquals(1, fs.getattr(fs.lookup(a, "moved")).getSize());
+        fs.remove(top, "moved");
+    }
+}
@@ -0,0 +1,102 @@
+package org.dcache.simplenfs;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.dcache.nfs.status.InvalException;
+import org.dcache.nfs.status.NoEntException;
+import org.dcache.nfs.vfs.Inode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LocalFileSystemTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalFileSystem fs;
+    private Inode root;
+
+    @Before
+    public void setUp() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Files.createDirectories(dir.resolve("dir/sub"));
+        Files.write(dir.resolve("dir/file"), new byte[1]);
+        Files.write(dir.resolve("dir/sub/file"), new byte[2]);
+        Files.write(dir.resolve("data"), "0123456789".getBytes(StandardCharsets.US_ASCII));
+        fs = new LocalFileSystem(dir, Collections.emptyList());
+        root = fs.getRootInode();
+    }
+
+    @Test
+    public void shouldFindContentOfRenamedDirectory() throws IOException {
+        Inode dir = fs.lookup(root, "dir");
+        Inode sub = fs.lookup(dir, "sub");
+        Inode file = fs.lookup(sub, "file");
+        fs.move(root, "dir", root, "renamed");
+
+        Inode renamed = fs.lookup(root, "renamed");
+        assertArrayEquals(dir.getFileId(), renamed.getFileId());
+        assertEquals(1, fs.getattr(fs.lookup(renamed, "file")).getSize());
+        assertEquals(2, fs.getattr(fs.lookup(fs.lookup(renamed, "sub"), "file")).getSize());
+        assertEquals(2, fs.getattr(file).getSize());
+        assertArrayEquals(sub.getFileId(), fs.parentOf(file).getFileId());
+    }
+
+    @Test(expected = NoEntException.class)
+    public void shouldNotFindOldNameOfRenamedDirectory() throws IOException {
+        fs.move(root, "dir", root, "renamed");
+        fs.lookup(root, "dir");
+    }
+
+    @Test(expected = NoEntException.class)
+    public void shouldHaveNoParentOfRoot() throws IOException {
+        fs.lookup(root, "..");
+    }
+
+    private void assertCopyFails(Inode src, long srcPos, Inode dst, long dstPos, long len) throws InterruptedException {
+        try {
+            fs.copyFileRange(src, srcPos, dst, dstPos, len).get();
+            fail("copy succeeded");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof InvalException);
+        }
+    }
+
+    @Test
+    public void shouldRejectOverlappingCopyWithinFile() throws Exception {
+        Inode data = fs.lookup(root, "data");
+        assertCopyFails(data, 0, data, 5, 6);
+        assertCopyFails(data, 4, data, 0, 0);
+        assertArrayEquals("0123456789".getBytes(StandardCharsets.US_ASCII),
+                Files.readAllBytes(folder.getRoot().toPath().resolve("data")));
+    }
+
+    @Test
+    public void shouldCopyWithinFile() throws Exception {
+        Inode data = fs.lookup(root, "data");
+        assertEquals(5, fs.copyFileRange(data, 0, data, 5, 5).get().longValue());
+        assertArrayEquals("0123401234".getBytes(StandardCharsets.US_ASCII),
+                Files.readAllBytes(folder.getRoot().toPath().resolve("data")));
+    }
+
+    @Test
+    public void shouldRejectCopyBeyondEndOfFile() throws Exception {
+        Inode data = fs.lookup(root, "data");
+        Inode file = fs.lookup(fs.lookup(root, "dir"), "file");
+        assertCopyFails(data, 11, file, 0, 1);
+        assertEquals(0, fs.copyFileRange(data, 10, file, 0, 0).get().longValue());
+    }
+}
@@ -0,0 +1,67 @@
+package org.dcache.simplenfs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.dcache.nfs.vfs.Inode;
+import org.dcache.nfs.vfs.Stat;
+import org.dcache.nfs.vfs.VirtualFileSystem;
+
+import javax.security.auth.Subject;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+public class RecordingFileSystemTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Map<String, Long> namespaceOf(Path root) throws IOException {
+        Map<String, Long> namespace = new TreeMap<>();
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) paths::iterator) {
+                namespace.put(root.relativize(p).toString(), Files.isDirectory(p) ? -1 : Files.size(p));
+            }
+        }
+        return namespace;
+    }
+
+    @Test
+    public void shouldReplayRecordedOperations() throws Exception {
+        Path recorded = folder.newFolder("recorded").toPath();
+        Path replayed = folder.newFolder("replayed").toPath();
+        Path trace = folder.getRoot().toPath().resolve("trace");
+        Files.createDirectories(recorded.resolve("dir/sub"));
+        Files.write(recorded.resolve("dir/existing"), new byte[100]);
+
+        Subject subject = new Subject();
+        try (RecordingFileSystem fs = new RecordingFileSystem(new LocalFileSystem(recorded, Collections.emptyList()), trace)) {
+            Inode root = fs.getRootInode();
+            Inode dir = fs.lookup(root, "dir");
+            Inode file = fs.create(dir, Stat.Type.REGULAR, "new", subject, 0644);
+            fs.write(file, new byte[4096], 0, 4096, VirtualFileSystem.StabilityLevel.FILE_SYNC);
+            fs.getattr(fs.lookup(dir, "new"));
+            fs.move(dir, "new", root, "moved");
+            Inode copy = fs.create(root, Stat.Type.REGULAR, "copy", subject, 0644);
+            fs.copyFileRange(fs.lookup(dir, "existing"), 0, copy, 0, 0).get();
+            fs.mkdir(dir, "created", subject, 0755);
+        }
+
+        TraceReplay replay = new TraceReplay();
+        replay.run(new String[]{"-trace", trace.toString(), "-root", replayed.toString(), "-fast"});
+
+        assertEquals(0, replay.getNamespaceFailed());
+        assertEquals(0, replay.getSkipped());
+        assertEquals(0, replay.getErrors());
+        assertEquals(namespaceOf(recorded), namespaceOf(replayed));
+    }
+}
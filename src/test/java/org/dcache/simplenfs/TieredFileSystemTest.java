@@ -0,0 +1,307 @@
+package org.dcache.simplenfs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.dcache.nfs.vfs.Inode;
+import org.dcache.nfs.vfs.Stat;
+import org.dcache.nfs.vfs.VirtualFileSystem;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TieredFileSystemTest {
+
+    private static final byte[] DATA = "0123456789".getBytes(StandardCharsets.US_ASCII);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path capacity;
+    private Path fast;
+    private TieredFileSystem fs;
+    private Inode root;
+
+    @Before
+    public void setUp() throws IOException {
+        capacity = folder.newFolder("capacity").toPath();
+        fast = folder.newFolder("fast").toPath();
+        Files.write(capacity.resolve("file"), DATA);
+        Files.write(capacity.resolve("other"), DATA);
+
+        useFileSystem(new LocalFileSystem(capacity, Collections.emptyList()), 1024 * 1024);
+    }
+
+    /**
+     * Replace the file system under test. A single read makes a file hot, one idle mover run
+     * makes it cold; the mover is driven by the test.
+     */
+    private void useFileSystem(VirtualFileSystem inner, long fastCapacity) throws IOException {
+        if (fs != null) {
+            fs.close();
+        }
+        fs = new TieredFileSystem(inner, fast, fastCapacity, 1.0, 0.6, 1, TimeUnit.HOURS);
+        root = fs.getRootInode();
+    }
+
+    /**
+     * Wrap a file system, calls of the named method go to the hook first, which may return null
+     * to pass the call on.
+     */
+    private static VirtualFileSystem hooked(VirtualFileSystem vfs, String name, InvocationHandler hook) {
+        return (VirtualFileSystem) Proxy.newProxyInstance(VirtualFileSystem.class.getClassLoader(),
+                new Class<?>[]{VirtualFileSystem.class}, (proxy, method, args) -> {
+                    if (method.getName().equals(name)) {
+                        Object result = hook.invoke(proxy, method, args);
+                        if (result != null) {
+                            return result;
+                        }
+                    }
+                    try {
+                        return method.invoke(vfs, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fs.close();
+    }
+
+    private Inode promoted(String name) throws IOException {
+        Inode inode = fs.lookup(root, name);
+        fs.read(inode, new byte[DATA.length], 0, DATA.length);
+        fs.moveData();
+        assertTrue(fs.isPromoted(inode));
+        return inode;
+    }
+
+    private long fastFiles() throws IOException {
+        try (Stream<Path> files = Files.list(fast)) {
+            return files.count();
+        }
+    }
+
+    private Path fastFile() throws IOException {
+        try (Stream<Path> files = Files.list(fast)) {
+            return files.findAny().orElseThrow(AssertionError::new);
+        }
+    }
+
+    private byte[] readAll(Inode inode) throws IOException {
+        byte[] data = new byte[64];
+        int n = fs.read(inode, data, 0, data.length);
+        return Arrays.copyOf(data, Math.max(n, 0));
+    }
+
+    @Test
+    public void shouldStartWithStaleFastTier() throws IOException {
+        fs.close();
+        Files.write(fast.resolve("stale"), DATA);
+        fs = new TieredFileSystem(new LocalFileSystem(capacity, Collections.emptyList()), fast, 1024 * 1024);
+        assertEquals(0, fastFiles());
+    }
+
+    @Test
+    public void shouldKeepDataAndMtimeOnPromoteAndEvict() throws IOException {
+        FileTime mtime = FileTime.fromMillis(1_000_000_000_000L);
+        Files.setLastModifiedTime(capacity.resolve("file"), mtime);
+
+        Inode inode = promoted("file");
+        assertEquals(1, fastFiles());
+        // not read through the file system, which would keep the file hot
+        assertArrayEquals(DATA, Files.readAllBytes(fastFile()));
+
+        fs.moveData();
+        assertFalse(fs.isPromoted(inode));
+        assertEquals(0, fastFiles());
+        assertArrayEquals(DATA, readAll(inode));
+        assertEquals(mtime, Files.getLastModifiedTime(capacity.resolve("file")));
+    }
+
+    @Test
+    public void shouldWriteThroughWhilePromoted() throws IOException {
+        Inode inode = promoted("file");
+        byte[] update = "abc".getBytes(StandardCharsets.US_ASCII);
+        fs.write(inode, update, 2, update.length, VirtualFileSystem.StabilityLevel.FILE_SYNC);
+
+        byte[] expected = "01abc56789".getBytes(StandardCharsets.US_ASCII);
+        assertArrayEquals(expected, readAll(inode));
+        assertArrayEquals(expected, Files.readAllBytes(capacity.resolve("file")));
+    }
+
+    @Test
+    public void shouldTruncateWhilePromoted() throws IOException {
+        Inode inode = promoted("file");
+        Stat stat = new Stat();
+        stat.setSize(4);
+        fs.setattr(inode, stat);
+
+        assertArrayEquals(Arrays.copyOf(DATA, 4), readAll(inode));
+        assertEquals(4, Files.size(capacity.resolve("file")));
+        assertEquals(4, fs.getattr(inode).getSize());
+    }
+
+    @Test
+    public void shouldExtendWhilePromoted() throws IOException {
+        Inode inode = promoted("file");
+        Stat stat = new Stat();
+        stat.setSize(20);
+        fs.setattr(inode, stat);
+
+        assertArrayEquals(Arrays.copyOf(DATA, 20), readAll(inode));
+        assertEquals(20, Files.size(capacity.resolve("file")));
+    }
+
+    @Test
+    public void shouldDropFastCopyOnRemove() throws IOException {
+        Inode inode = promoted("file");
+        fs.remove(root, "file");
+
+        assertFalse(fs.isPromoted(inode));
+        assertEquals(0, fastFiles());
+    }
+
+    @Test
+    public void shouldDropFastCopyOfReplacedFileOnRename() throws IOException {
+        Inode replaced = promoted("file");
+        fs.move(root, "other", root, "file");
+
+        assertFalse(fs.isPromoted(replaced));
+        assertEquals(0, fastFiles());
+        assertArrayEquals(DATA, readAll(fs.lookup(root, "file")));
+    }
+
+    @Test
+    public void shouldKeepFastCopyOnRename() throws IOException {
+        Inode inode = promoted("file");
+        fs.move(root, "file", root, "renamed");
+
+        assertTrue(fs.isPromoted(inode));
+        assertArrayEquals(DATA, readAll(fs.lookup(root, "renamed")));
+    }
+
+    @Test
+    public void shouldNotPromoteDestinationOfCopy() throws Exception {
+        CompletableFuture<Long> copy = new CompletableFuture<>();
+        useFileSystem(hooked(new LocalFileSystem(capacity, Collections.emptyList()), "copyFileRange",
+                (proxy, method, args) -> copy), 1024 * 1024);
+        Inode src = fs.lookup(root, "other");
+        Inode dst = fs.lookup(root, "file");
+
+        CompletableFuture<Long> result = fs.copyFileRange(src, 0, dst, 0, DATA.length);
+        fs.read(dst, new byte[DATA.length], 0, DATA.length);
+        fs.moveData();
+        assertFalse(fs.isPromoted(dst));
+
+        copy.complete((long) DATA.length);
+        assertEquals(DATA.length, result.get().longValue());
+        fs.read(dst, new byte[DATA.length], 0, DATA.length);
+        fs.moveData();
+        assertTrue(fs.isPromoted(dst));
+    }
+
+    @Test
+    public void shouldNotBlockWritesWhilePromoting() throws Exception {
+        byte[] update = "abc".getBytes(StandardCharsets.US_ASCII);
+        AtomicBoolean armed = new AtomicBoolean();
+        useFileSystem(hooked(new LocalFileSystem(capacity, Collections.emptyList()), "read",
+                (proxy, method, args) -> {
+                    if (armed.getAndSet(false)) {
+                        // a client writes while the mover copies the file
+                        CompletableFuture.runAsync(() -> {
+                            try {
+                                fs.write((Inode) args[0], update, 0, update.length,
+                                        VirtualFileSystem.StabilityLevel.FILE_SYNC);
+                            } catch (IOException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }).get(10, TimeUnit.SECONDS);
+                    }
+                    return null;
+                }), 1024 * 1024);
+        Inode inode = fs.lookup(root, "file");
+        fs.read(inode, new byte[DATA.length], 0, DATA.length);
+
+        armed.set(true);
+        fs.moveData();
+        assertFalse(armed.get());
+        assertFalse(fs.isPromoted(inode));
+        assertEquals(0, fastFiles());
+
+        byte[] expected = "abc3456789".getBytes(StandardCharsets.US_ASCII);
+        assertArrayEquals(expected, readAll(inode));
+        fs.moveData();
+        assertTrue(fs.isPromoted(inode));
+        assertArrayEquals(expected, Files.readAllBytes(fastFile()));
+    }
+
+    @Test
+    public void shouldDropFastCopyOnFailedWrite() throws IOException {
+        Inode inode = promoted("file");
+        Files.delete(fastFile());
+
+        byte[] update = "abc".getBytes(StandardCharsets.US_ASCII);
+        try {
+            fs.write(inode, update, 0, update.length, VirtualFileSystem.StabilityLevel.FILE_SYNC);
+            fail("write to missing fast copy succeeded");
+        } catch (IOException e) {
+        }
+        assertFalse(fs.isPromoted(inode));
+        assertArrayEquals("abc3456789".getBytes(StandardCharsets.US_ASCII), readAll(inode));
+    }
+
+    @Test
+    public void shouldReadCapacityTierOnFailedRead() throws IOException {
+        Inode inode = promoted("file");
+        Files.delete(fastFile());
+
+        assertArrayEquals(DATA, readAll(inode));
+        assertFalse(fs.isPromoted(inode));
+    }
+
+    @Test
+    public void shouldEvictColdestWhenPromotedFileGrows() throws IOException {
+        useFileSystem(new LocalFileSystem(capacity, Collections.emptyList()), 2 * DATA.length + 5);
+        Inode file = fs.lookup(root, "file");
+        Inode other = fs.lookup(root, "other");
+        fs.read(file, new byte[DATA.length], 0, DATA.length);
+        fs.read(other, new byte[DATA.length], 0, DATA.length);
+        fs.moveData();
+        assertTrue(fs.isPromoted(file));
+        assertTrue(fs.isPromoted(other));
+
+        fs.write(file, DATA, DATA.length, DATA.length, VirtualFileSystem.StabilityLevel.FILE_SYNC);
+        for (int i = 0; i < 3; i++) {
+            fs.read(other, new byte[DATA.length], 0, DATA.length);
+        }
+        fs.moveData();
+        assertFalse(fs.isPromoted(file));
+        assertTrue(fs.isPromoted(other));
+        assertEquals(1, fastFiles());
+        assertEquals(2 * DATA.length, readAll(file).length);
+    }
+}